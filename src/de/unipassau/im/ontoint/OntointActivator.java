@@ -10,8 +10,15 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.eclipse.core.runtime.jobs.IJobChangeEvent;
+import org.eclipse.core.runtime.jobs.IJobChangeListener;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.core.runtime.jobs.JobChangeAdapter;
 import org.eclipse.jface.resource.ImageDescriptor;
+import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.IMemento;
 import org.eclipse.ui.XMLMemento;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
@@ -20,6 +27,8 @@ import org.semanticweb.owlapi.model.IRI;
 
 import de.unipassau.im.ontoint.jobs.ImportOntologyFileJob;
 import de.unipassau.im.ontoint.jobs.ImportOntologyURLJob;
+import de.unipassau.im.ontoint.model.OntologyDownloadCache;
+import de.unipassau.im.ontoint.model.ProposalIndexFile;
 import de.unipassau.im.ontoint.model.WrappedOWLOntology;
 import de.unipassau.im.ontoint.model.WrappedOWLOntologyManager;
 import de.unipassau.im.ontoint.proposals.BayesClassifier;
@@ -44,6 +53,9 @@ public final class OntointActivator extends AbstractUIPlugin {
      */
     private static final String FILE_CLASSIFIER = "classifier.serialized";
     private static final String FILE_RECENT = "recent.xml";
+    private static final String FILE_INDEX = "proposals.index";
+    private static final String FILE_DOWNLOADS = "downloads";
+    private static final String FILE_SNAPSHOTS = "snapshots";
 
     /**
      * The unique plug-in ID.
@@ -75,6 +87,22 @@ public final class OntointActivator extends AbstractUIPlugin {
      */
     private boolean deserialize;
 
+    /**
+     * The number of recently opened ontologies still being imported, plus one
+     * while the imports are being scheduled.
+     */
+    private final AtomicInteger pendingImports = new AtomicInteger();
+
+    /**
+     * Retires the warm start index once the last recently opened ontology
+     * has been imported.
+     */
+    private final IJobChangeListener importListener = new JobChangeAdapter() {
+        public void done(final IJobChangeEvent event) {
+            OntointActivator.this.importDone();
+        }
+    };
+
     /**
      * The constructor.
      */
@@ -92,6 +120,14 @@ public final class OntointActivator extends AbstractUIPlugin {
         this.deserialize = loadSerializedClassifier;
         this.imageCache = new ImageCache();
         this.manager = new WrappedOWLOntologyManager();
+
+        /*
+         * Offload idle ontologies as soon as all ontologies are estimated to
+         * retain a quarter of the heap, unless configured otherwise.
+         */
+        this.manager.setMemoryBudget(Long.getLong(
+                OntointActivator.PLUGIN_ID + ".memoryBudget",
+                Runtime.getRuntime().maxMemory() / 4));
     }
 
     /**
@@ -100,6 +136,24 @@ public final class OntointActivator extends AbstractUIPlugin {
     public void start(final BundleContext context) throws Exception {
         super.start(context);
         OntointActivator.plugin = this;
+
+        // Notify the views about loaded ontologies on the display thread.
+        final Display display = this.getWorkbench().getDisplay();
+        this.manager.setEventExecutor(new Executor() {
+            public void execute(final Runnable command) {
+                if (!display.isDisposed())
+                    display.asyncExec(command);
+            }
+        });
+
+        // Read remote ontologies from the cache of the last session.
+        this.manager.getLoadCoordinator().setDownloadCache(
+                new OntologyDownloadCache(this.getPluginFile(
+                        OntointActivator.FILE_DOWNLOADS)));
+
+        // Restore unchanged local ontologies from their snapshots.
+        this.manager.getLoadCoordinator().setSnapshotDirectory(
+                this.getPluginFile(OntointActivator.FILE_SNAPSHOTS));
     
         // Register an icon for this plugin's jobs.
         this.getWorkbench().getProgressService().registerIconForFamily(
@@ -112,8 +166,16 @@ public final class OntointActivator extends AbstractUIPlugin {
             this.classifier = new BayesClassifier<ContextFeature, String>();
         }
     
+        /*
+         * Answer proposals from the serialized index of the last session
+         * until all recently opened ontologies have been loaded again.
+         */
+        this.pendingImports.set(1);
+        this.openProposalIndex();
+
         // Load all recently opened ontologies
         this.importRecentOntologies();
+        this.importDone();
     }
 
     /**
@@ -122,6 +184,7 @@ public final class OntointActivator extends AbstractUIPlugin {
     public void stop(final BundleContext context) throws Exception {
 
         this.saveClassifier();
+        this.saveProposalIndex();
         this.saveRecentOntologies();
 
         OntointActivator.plugin = null;
@@ -271,12 +334,56 @@ public final class OntointActivator extends AbstractUIPlugin {
             final String iri = child.getString(
                     OntointActivator.MEMENTO_TAG_LOCATION);
 
+            final Job job;
             if (isFile)
-                new ImportOntologyFileJob("Importing recently opened ontology",
-                        new File(iri.replaceAll("^file:", ""))).schedule();
+                job = new ImportOntologyFileJob(
+                        "Importing recently opened ontology",
+                        new File(iri.replaceAll("^file:", "")));
             else
-                new ImportOntologyURLJob("Importing recently opened ontology",
-                        IRI.create(iri)).schedule();
+                job = new ImportOntologyURLJob(
+                        "Importing recently opened ontology",
+                        IRI.create(iri));
+            this.pendingImports.incrementAndGet();
+            job.addJobChangeListener(this.importListener);
+            job.schedule();
+        }
+    }
+
+    /**
+     * Called whenever the import of a recently opened ontology is done.
+     */
+    private void importDone() {
+        if (this.pendingImports.decrementAndGet() == 0)
+            this.getManager().setWarmIndex(null);
+    }
+
+    /**
+     * Opens the serialized proposal index of the last session, if there is
+     * one and the ontology documents it was built from did not change.
+     */
+    private void openProposalIndex() {
+        final File file = this.getPluginFile(OntointActivator.FILE_INDEX);
+        if (!file.isFile())
+            return;
+        try {
+            final ProposalIndexFile index = ProposalIndexFile.open(file);
+            if (index.isValid(this.getManager().getLoadCoordinator()
+                    .getDownloadCache()))
+                this.getManager().setWarmIndex(index);
+        } catch (IOException e) {
+            OntointLog.logError(e);
+        }
+    }
+
+    /**
+     * Serializes the proposal index for the next session.
+     */
+    private void saveProposalIndex() {
+        try {
+            this.getManager().saveProposalIndex(
+                    this.getPluginFile(OntointActivator.FILE_INDEX));
+        } catch (IOException e) {
+            OntointLog.logError(e);
         }
     }
 
@@ -4,7 +4,7 @@ import java.io.File;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.jobs.Job;
-import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.IRI;
 
 /**
  * An {@link ImportOntologyJob} subclass implementing the loadOntology method
@@ -36,12 +36,7 @@ public final class ImportOntologyFileJob extends ImportOntologyJob {
     protected void loadOntology(final IProgressMonitor monitor) {
         monitor.subTask("Loading File " + this.file.getName());
 
-        try {
-            this.getManager().getWrappedManager()
-                    .loadOntologyFromOntologyDocument(this.file);
-        } catch (OWLOntologyCreationException e) {
-            // ignored
-        }
+        this.loadDocument(IRI.create(this.file));
     }
 
 }
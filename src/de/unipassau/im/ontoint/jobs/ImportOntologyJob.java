@@ -1,5 +1,6 @@
 package de.unipassau.im.ontoint.jobs;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -7,13 +8,12 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
 import org.eclipse.core.runtime.jobs.Job;
-import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.statushandlers.StatusManager;
-import org.semanticweb.owlapi.model.OWLOntologyLoaderListener;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
 
 import de.unipassau.im.ontoint.OntointActivator;
 import de.unipassau.im.ontoint.OntointLog;
-import de.unipassau.im.ontoint.model.WrappedOWLOntology;
 import de.unipassau.im.ontoint.model.WrappedOWLOntologyManager;
 
 /**
@@ -23,8 +23,7 @@ import de.unipassau.im.ontoint.model.WrappedOWLOntologyManager;
  * occurred exceptions via the
  * {@link ImportOntologyJob#appendException(Throwable)} method.
  */
-public abstract class ImportOntologyJob extends Job
-        implements OWLOntologyLoaderListener {
+public abstract class ImportOntologyJob extends Job {
 
     /**
      * A list of exceptions that occurred during the import of the ontology.
@@ -66,8 +65,6 @@ public abstract class ImportOntologyJob extends Job
      * {@inheritDoc}
      */
     protected final IStatus run(final IProgressMonitor monitor) {
-        this.manager.getWrappedManager().addOntologyLoaderListener(this);
-
         monitor.beginTask("Importing Ontology", IProgressMonitor.UNKNOWN);
 
         this.loadOntology(monitor);
@@ -78,7 +75,6 @@ public abstract class ImportOntologyJob extends Job
             this.reportExceptions();
         }
 
-        this.manager.getWrappedManager().removeOntologyLoaderListener(this);
         return Status.OK_STATUS;
     }
 
@@ -94,19 +90,20 @@ public abstract class ImportOntologyJob extends Job
     }
 
     /**
-     * Notify the {@link WrappedOWLOntologyManager} listeners about the
-     * newly added ontology.
+     * Loads the ontology document given and its imports through the
+     * manager's {@link de.unipassau.im.ontoint.model.OntologyLoadCoordinator}.
+     * The manager posts the added ontologies to the UI without waiting for
+     * it.  Documents that could not be loaded are appended to the exceptions.
      *
-     * @param loadedOntology the ontology to hand over to the UI
+     * @param documentIRI the IRI of the document to load
      */
-    private void syncWithUI(final WrappedOWLOntology loadedOntology) {
-        Display.getDefault().syncExec(new Runnable() {
-            public void run() {
+    protected final void loadDocument(final IRI documentIRI) {
+        final List<OWLOntologyCreationException> failures =
+                new ArrayList<OWLOntologyCreationException>();
+        this.manager.getLoadCoordinator().load(documentIRI, failures);
 
-                OntointActivator.getDefault().getManager().notifyListeners(
-                        new WrappedOWLOntology[] {loadedOntology}, null);
-            }
-        });
+        for (OWLOntologyCreationException e : failures)
+            this.appendException(e);
     }
 
     /**
@@ -147,25 +144,4 @@ public abstract class ImportOntologyJob extends Job
                 || super.belongsTo(family));
     }
 
-
-    /**
-     * {@inheritDoc}
-     */
-    public final void startedLoadingOntology(
-            final LoadingStartedEvent event) { }
-
-    /**
-     * {@inheritDoc}
-     */
-    public final void finishedLoadingOntology(
-            final LoadingFinishedEvent event) {
-        if (event.isSuccessful()) {
-            this.syncWithUI(this.manager.getWrappedOntology(
-                    this.manager.getWrappedManager().getOntology(
-                            event.getOntologyID())));
-        } else {
-            this.appendException(event.getException());
-        }
-    }
-
 }
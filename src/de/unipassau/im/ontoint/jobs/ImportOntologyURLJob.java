@@ -2,7 +2,6 @@ package de.unipassau.im.ontoint.jobs;
 
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.semanticweb.owlapi.model.IRI;
-import org.semanticweb.owlapi.model.OWLOntologyCreationException;
 
 /**
  * An {@link ImportOntologyJob} subclass implementing the loadOntology method
@@ -34,12 +33,7 @@ public final class ImportOntologyURLJob extends ImportOntologyJob {
     protected void loadOntology(final IProgressMonitor monitor) {
         monitor.subTask("Loading File from " + this.iri.toString());
 
-        try {
-            this.getManager().getWrappedManager()
-                    .loadOntologyFromOntologyDocument(this.iri);
-        } catch (OWLOntologyCreationException e) {
-            // ignored
-        }
+        this.loadDocument(this.iri);
     }
 
 }
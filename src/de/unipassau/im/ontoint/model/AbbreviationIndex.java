@@ -0,0 +1,165 @@
+package de.unipassau.im.ontoint.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A secondary index over the word boundaries of entity short IDs.  Ontology
+ * local names are mostly CamelCase, so developers tend to type abbreviations
+ * like <code>OSC</code> or <code>StarClu</code> for
+ * <code>OpenStarCluster</code>.  The index stores every entity under the
+ * initials of its words and under every suffix starting at a word boundary
+ * (except the ID itself, which is found through the main
+ * {@link TemplateProposalTrie}), so abbreviations are answered by a single
+ * prefix lookup.
+ *
+ * @author Philipp Nolte
+ */
+final class AbbreviationIndex {
+
+    /**
+     * The Trie holding the abbreviation keys.
+     */
+    private final TemplateProposalTrie keys = new TemplateProposalTrie();
+
+    /**
+     * Adds all entities given to the index and publishes them at once.
+     *
+     * @param c the entities to add
+     */
+    void addAll(final Collection<? extends WrappedOWLEntity> c) {
+        final List<String> keyList = new ArrayList<String>();
+        final List<WrappedOWLEntity> entityList =
+                new ArrayList<WrappedOWLEntity>();
+        AbbreviationIndex.expand(c, keyList, entityList);
+        this.keys.addAll(keyList, entityList);
+    }
+
+    /**
+     * Removes all entities given from the index and publishes the result at
+     * once.
+     *
+     * @param c the entities to remove
+     */
+    void removeAll(final Collection<? extends WrappedOWLEntity> c) {
+        final List<String> keyList = new ArrayList<String>();
+        final List<WrappedOWLEntity> entityList =
+                new ArrayList<WrappedOWLEntity>();
+        AbbreviationIndex.expand(c, keyList, entityList);
+        this.keys.removeAll(keyList, entityList);
+    }
+
+    /**
+     * Lists every abbreviation key of the entities given together with its
+     * entity.
+     *
+     * @param c the entities
+     * @param keyList the list to add the keys to
+     * @param entityList the list to add the entities to
+     */
+    private static void expand(final Collection<? extends WrappedOWLEntity> c,
+            final List<String> keyList,
+            final List<WrappedOWLEntity> entityList) {
+        for (WrappedOWLEntity e : c) {
+            for (String key : AbbreviationIndex.keysOf(e.getShortID())) {
+                keyList.add(key);
+                entityList.add(e);
+            }
+        }
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> entities matching the abbreviation
+     * given, in lexicographic order of the matching keys.
+     *
+     * @param abbreviation the abbreviation, eg. <code>OSC</code> or
+     *  <code>StarClu</code>
+     * @param limit the maximum number of entities to retrieve
+     * @return the matching entities
+     */
+    Set<WrappedOWLEntity> find(final String abbreviation, final int limit) {
+        final Set<WrappedOWLEntity> toReturn =
+                new LinkedHashSet<WrappedOWLEntity>();
+        if (limit < 1)
+            return toReturn;
+        this.keys.visit(abbreviation,
+                new ITemplateProposalVisitor() {
+            public boolean visit(final WrappedOWLEntity entity) {
+                toReturn.add(entity);
+                return toReturn.size() < limit;
+            }
+        });
+        return toReturn;
+    }
+
+    /**
+     * Removes all entities from the index.
+     */
+    void clear() {
+        this.keys.clear();
+    }
+
+    /**
+     * Computes the abbreviation keys of the ID given: the initials of its
+     * words and the suffixes starting at every word boundary but the first,
+     * all folded by {@link CaseFolding#UNICODE} like the keys of the Trie.
+     * IDs consisting of a single word have no keys.
+     *
+     * @param id the ID to compute the keys for
+     * @return the keys
+     */
+    static List<String> keysOf(final String id) {
+        final List<Integer> starts = AbbreviationIndex.wordStarts(id);
+        final List<String> toReturn = new ArrayList<String>(starts.size());
+        if (starts.size() < 2)
+            return toReturn;
+
+        final StringBuilder initials = new StringBuilder(starts.size());
+        for (int i = 0; i < starts.size(); i++) {
+            final int start = starts.get(i);
+            initials.appendCodePoint(CaseFolding.UNICODE.fold(
+                    id.codePointAt(start)));
+            if (i > 0)
+                toReturn.add(CaseFolding.UNICODE.fold(id.substring(start)));
+        }
+        toReturn.add(initials.toString());
+        return toReturn;
+    }
+
+    /**
+     * Finds the offsets at which words start within the ID given.  A word
+     * starts after any char that is neither a letter nor a digit, at an
+     * uppercase letter following a lowercase letter or digit, at the last
+     * uppercase letter of a run that is followed by a lowercase letter
+     * (<code>XMLParser</code>) and at the border between letters and digits.
+     *
+     * @param id the ID to split
+     * @return the offsets of the first char of every word
+     */
+    static List<Integer> wordStarts(final String id) {
+        final List<Integer> toReturn = new ArrayList<Integer>();
+        final int n = id.length();
+        for (int i = 0; i < n; i++) {
+            final char c = id.charAt(i);
+            if (!Character.isLetterOrDigit(c))
+                continue;
+            if ((i == 0) || !Character.isLetterOrDigit(id.charAt(i - 1))) {
+                toReturn.add(i);
+                continue;
+            }
+
+            final char p = id.charAt(i - 1);
+            final boolean upper = Character.isUpperCase(c);
+            if ((upper && !Character.isUpperCase(p))
+                    || (upper && (i + 1 < n)
+                            && Character.isLowerCase(id.charAt(i + 1)))
+                    || (Character.isDigit(c) != Character.isDigit(p)))
+                toReturn.add(i);
+        }
+        return toReturn;
+    }
+
+}
@@ -0,0 +1,99 @@
+package de.unipassau.im.ontoint.model;
+
+/**
+ * The ways of folding IDs and queries to a case-insensitive form.  Unlike
+ * {@link String#toLowerCase()}, folding never depends on the default locale
+ * (a Turkish locale would lowercase <code>I</code> to a dotless
+ * <code>&#x131;</code>) and folds a single code point at a time, so queries
+ * can be folded on the fly while walking a {@link TemplateProposalTrie}.
+ *
+ * @author Philipp Nolte
+ */
+public enum CaseFolding {
+
+    /**
+     * Lowercases every char of the basic multilingual plane on its own.  This
+     * is what <code>toLowerCase()</code> does for most IDs, but it misses
+     * characters with several lowercase forms and supplementary characters.
+     */
+    SIMPLE {
+
+        /**
+         * {@inheritDoc}
+         */
+        public int fold(final int codePoint) {
+            if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT)
+                return codePoint;
+            return Character.toLowerCase(codePoint);
+        }
+
+    },
+
+    /**
+     * Folds every code point to the lowercase form of its uppercase form.
+     * All case variants of a letter end up the same, eg. the long s
+     * <code>&#x17F;</code> and <code>S</code> fold to <code>s</code>, the
+     * final sigma <code>&#x3C2;</code> folds to <code>&#x3C3;</code> and the
+     * Kelvin sign folds to <code>k</code>.  Supplementary characters are
+     * folded as well.  This is the folding used for the keys of
+     * {@link WrappedOWLEntity}s.
+     */
+    UNICODE {
+
+        /**
+         * {@inheritDoc}
+         */
+        public int fold(final int codePoint) {
+            return Character.toLowerCase(Character.toUpperCase(codePoint));
+        }
+
+    };
+
+    /**
+     * Folds a single code point.
+     *
+     * @param codePoint the code point to fold
+     * @return the folded code point
+     */
+    public abstract int fold(int codePoint);
+
+    /**
+     * Folds all code points of the chars given.
+     *
+     * @param chars the chars to fold
+     * @return the folded string
+     */
+    public String fold(final CharSequence chars) {
+        final StringBuilder toReturn = new StringBuilder(chars.length());
+        int i = 0;
+        while (i < chars.length()) {
+            final int codePoint = Character.codePointAt(chars, i);
+            toReturn.appendCodePoint(this.fold(codePoint));
+            i += Character.charCount(codePoint);
+        }
+        return toReturn.toString();
+    }
+
+    /**
+     * Retrieves the high surrogate of a supplementary code point.
+     *
+     * @param codePoint the supplementary code point
+     * @return the high surrogate
+     */
+    static char highSurrogate(final int codePoint) {
+        return (char) (((codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT)
+                >>> 10) + Character.MIN_HIGH_SURROGATE);
+    }
+
+    /**
+     * Retrieves the low surrogate of a supplementary code point.
+     *
+     * @param codePoint the supplementary code point
+     * @return the low surrogate
+     */
+    static char lowSurrogate(final int codePoint) {
+        return (char) (((codePoint - Character.MIN_SUPPLEMENTARY_CODE_POINT)
+                & 0x3ff) + Character.MIN_LOW_SURROGATE);
+    }
+
+}
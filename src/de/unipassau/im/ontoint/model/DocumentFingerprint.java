@@ -0,0 +1,290 @@
+package de.unipassau.im.ontoint.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Identifies the state of an ontology document by its size, last
+ * modification time and content hash.  Files written by this plugin next to
+ * the ontologies (eg. the serialized proposal index) record the fingerprints
+ * of the documents they were built from and are only trusted as long as the
+ * documents still match.
+ * <p>
+ * Local files are fingerprinted directly.  Documents at any other location
+ * have an unknown size and are fingerprinted by the content hash of their
+ * copy in an {@link OntologyDownloadCache}, as checking them would mean
+ * downloading them again.  They only match as long as the cached copy has
+ * not been replaced, and never match without a cache.
+ *
+ * @author Philipp Nolte
+ */
+public final class DocumentFingerprint {
+
+    /**
+     * The size reported for documents that are not local files.
+     */
+    private static final long UNKNOWN = -1;
+
+    /**
+     * The digest algorithm used for content hashes.
+     */
+    private static final String ALGORITHM = "SHA-1";
+
+    /**
+     * The document location, usually the document IRI.
+     */
+    private final String location;
+
+    /**
+     * The document size in bytes.
+     */
+    private final long size;
+
+    /**
+     * The time of the document's last modification.
+     */
+    private final long lastModified;
+
+    /**
+     * The content hash.
+     */
+    private final byte[] hash;
+
+    /**
+     * Creates a new fingerprint from the data given.
+     *
+     * @param documentLocation the document location
+     * @param documentSize the document size or <code>-1</code> if unknown
+     * @param modified the time of the last modification
+     * @param contentHash the content hash, possibly empty
+     */
+    public DocumentFingerprint(final String documentLocation,
+            final long documentSize, final long modified,
+            final byte[] contentHash) {
+        this.location = documentLocation;
+        this.size = documentSize;
+        this.lastModified = modified;
+        this.hash = contentHash;
+    }
+
+    /**
+     * Takes the fingerprint of the document at the location given.
+     *
+     * @param documentLocation the document location, eg. a document IRI
+     * @return the fingerprint
+     * @throws IOException if the document could not be read
+     */
+    public static DocumentFingerprint of(final String documentLocation)
+            throws IOException {
+        return DocumentFingerprint.of(documentLocation, null);
+    }
+
+    /**
+     * Takes the fingerprint of the document at the location given.  Remote
+     * documents are fingerprinted by their copy in the cache given.
+     *
+     * @param documentLocation the document location, eg. a document IRI
+     * @param cache the cache of remote documents or <code>null</code>
+     * @return the fingerprint
+     * @throws IOException if the document or cache could not be read
+     */
+    public static DocumentFingerprint of(final String documentLocation,
+            final OntologyDownloadCache cache) throws IOException {
+        final File file = DocumentFingerprint.toFile(documentLocation);
+        if (file == null) {
+            final byte[] cached = (cache == null) ? null
+                    : cache.getContentHash(documentLocation);
+            return new DocumentFingerprint(documentLocation,
+                    DocumentFingerprint.UNKNOWN, 0,
+                    (cached == null) ? new byte[0] : cached);
+        }
+        return new DocumentFingerprint(documentLocation, file.length(),
+                file.lastModified(), DocumentFingerprint.hash(file));
+    }
+
+    /**
+     * Does the document still match this fingerprint?  Remote documents never
+     * match.
+     *
+     * @return <code>true</code> if the document has not changed
+     *
+     * @see DocumentFingerprint#matches(OntologyDownloadCache)
+     */
+    public boolean matches() {
+        return this.matches(null);
+    }
+
+    /**
+     * Does the document still match this fingerprint?  The content of a
+     * local file is only hashed again if the size matches but the
+     * modification time does not.  A remote document matches if its copy in
+     * the cache given has the recorded content hash.
+     *
+     * @param cache the cache of remote documents or <code>null</code>
+     * @return <code>true</code> if the document has not changed
+     */
+    public boolean matches(final OntologyDownloadCache cache) {
+        final File file = DocumentFingerprint.toFile(this.location);
+        if (file == null) {
+            if ((cache == null) || (this.hash.length == 0))
+                return false;
+            try {
+                return Arrays.equals(this.hash,
+                        cache.getContentHash(this.location));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        if (!file.isFile() || (file.length() != this.size))
+            return false;
+        if (file.lastModified() == this.lastModified)
+            return true;
+        try {
+            return Arrays.equals(this.hash, DocumentFingerprint.hash(file));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Retrieves the document location.
+     *
+     * @return the location
+     */
+    public String getLocation() {
+        return this.location;
+    }
+
+    /**
+     * Retrieves the document size.
+     *
+     * @return the size in bytes or <code>-1</code> if unknown
+     */
+    public long getSize() {
+        return this.size;
+    }
+
+    /**
+     * Retrieves the time of the document's last modification.
+     *
+     * @return the time in milliseconds since the epoch
+     */
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    /**
+     * Retrieves the content hash.
+     *
+     * @return the hash, empty if the document is remote and was not cached
+     */
+    public byte[] getHash() {
+        return this.hash.clone();
+    }
+
+    /**
+     * Retrieves the local file at the location given.
+     *
+     * @param documentLocation the location
+     * @return the file or <code>null</code> if the location is not a local
+     *  file
+     */
+    static File toFile(final String documentLocation) {
+        if (!documentLocation.startsWith("file:"))
+            return null;
+        try {
+            return new File(new URI(documentLocation));
+        } catch (Exception e) {
+            return new File(documentLocation.replaceAll("^file:", ""));
+        }
+    }
+
+    /**
+     * Derives a file name from the location given, for files kept per
+     * document such as cache entries.
+     *
+     * @param documentLocation the document location
+     * @return the hexadecimal hash of the location
+     */
+    static String nameOf(final String documentLocation) {
+        try {
+            return DocumentFingerprint.toHex(MessageDigest.getInstance(
+                    DocumentFingerprint.ALGORITHM).digest(
+                            documentLocation.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Encodes the bytes given as hexadecimal digits.
+     *
+     * @param bytes the bytes to encode
+     * @return the hexadecimal digits
+     */
+    static String toHex(final byte[] bytes) {
+        final StringBuilder toReturn = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            toReturn.append(Character.forDigit((b >> 4) & 0xF, 16));
+            toReturn.append(Character.forDigit(b & 0xF, 16));
+        }
+        return toReturn.toString();
+    }
+
+    /**
+     * Decodes the hexadecimal digits given.
+     *
+     * @param hex the hexadecimal digits
+     * @return the decoded bytes
+     * @throws NumberFormatException if the digits are malformed
+     */
+    static byte[] fromHex(final String hex) {
+        if ((hex.length() % 2) != 0)
+            throw new NumberFormatException(hex);
+        final byte[] toReturn = new byte[hex.length() / 2];
+        for (int i = 0; i < toReturn.length; i++) {
+            final int high = Character.digit(hex.charAt(i * 2), 16);
+            final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if ((high < 0) || (low < 0))
+                throw new NumberFormatException(hex);
+            toReturn[i] = (byte) ((high << 4) | low);
+        }
+        return toReturn;
+    }
+
+    /**
+     * Hashes the content of the file given.
+     *
+     * @param file the file to hash
+     * @return the content hash
+     * @throws IOException if the file could not be read
+     */
+    static byte[] hash(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DocumentFingerprint.ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                digest.update(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+}
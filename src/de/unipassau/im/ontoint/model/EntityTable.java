@@ -0,0 +1,547 @@
+package de.unipassau.im.ontoint.model;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The central table of all {@link WrappedOWLEntity} singletons.  The
+ * entities themselves carry their type and the index of their namespace in
+ * the dictionary shared by all entities, the table only keeps them in an
+ * array and finds them by ID through an open addressing hash table.
+ * <p>
+ * The table is safe for use by several import jobs at once.  Lookups of
+ * entities that are already interned share a read lock, only interning new
+ * entities is exclusive.  The table holds an entity strongly only while it
+ * is attached, ie. while an ontology provides it: the
+ * {@link WrappedOWLOntologyManager} attaches entities once it adds them to
+ * the proposal Trie and releases them once the last ontology providing them
+ * is removed.  Entities that are merely interned, eg. by a proposal or a
+ * warm index lookup, and released entities are detached.  The table only
+ * keeps a weak reference to a detached entity, which stays in the table for
+ * as long as anything else still refers to it.  Interning its ID again
+ * brings back the very same singleton without attaching it; only once the
+ * entity has been garbage collected is its entry reused.
+ *
+ * @author Philipp Nolte
+ */
+public final class EntityTable {
+
+    /**
+     * The initial capacity of the entity array.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Guards the entities and the hash table.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * The attached entities by entry, <code>null</code> for free entries and
+     * detached entities.
+     */
+    private WrappedOWLEntity[] entities =
+            new WrappedOWLEntity[EntityTable.INITIAL_CAPACITY];
+
+    /**
+     * The ID hashes by entry, so detached entities can be removed from the
+     * hash table after they have been garbage collected.
+     */
+    private int[] hashes = new int[EntityTable.INITIAL_CAPACITY];
+
+    /**
+     * The detached entities by entry, <code>null</code> for entries that are
+     * free or attached.
+     */
+    private Detached[] detached =
+            new Detached[EntityTable.INITIAL_CAPACITY];
+
+    /**
+     * Receives the detached entities that have been garbage collected.
+     */
+    private final ReferenceQueue<WrappedOWLEntity> queue =
+            new ReferenceQueue<WrappedOWLEntity>();
+
+    /**
+     * The number of attached entities.
+     */
+    private int size;
+
+    /**
+     * The number of detached entities still holding their entries.
+     */
+    private int detachedCount;
+
+    /**
+     * One more than the highest entry in use.
+     */
+    private int bound;
+
+    /**
+     * The free entries below the bound.
+     */
+    private final BitSet free = new BitSet();
+
+    /**
+     * An open addressing hash table of the entries plus one by entity ID,
+     * <code>0</code> marking free slots.  Unlike a map with the IDs as keys
+     * it does not keep a copy of every ID, which the entities only store in
+     * parts.
+     */
+    private int[] slots = new int[EntityTable.INITIAL_CAPACITY * 2];
+
+    /**
+     * The number of lookups that found an interned entity.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of lookups that did not find an interned entity.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Retrieves the singleton for the entity given, interning the entity
+     * itself if there is none yet.  A newly interned entity is detached.
+     *
+     * @param e the entity
+     * @return the interned entity with the same ID
+     */
+    public WrappedOWLEntity intern(final WrappedOWLEntity e) {
+        final String id = e.getID();
+        final WrappedOWLEntity interned = this.find(id);
+        if (interned != null)
+            return interned;
+        final Lock write = this.lock.writeLock();
+        write.lock();
+        try {
+            this.drain();
+            int slot = this.slotOf(id);
+            if (this.slots[slot] != 0) {
+                final WrappedOWLEntity found =
+                        this.entityAt(this.slots[slot] - 1);
+                if (found != null)
+                    return found;
+                this.expunge(this.slots[slot] - 1);
+                slot = this.slotOf(id);
+            }
+            this.add(e, slot);
+            return e;
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the singleton for the ID given, creating it if there is none
+     * yet.
+     *
+     * @param id the entity ID
+     * @param type the entity type used if the entity has to be created
+     * @return the interned entity
+     */
+    public WrappedOWLEntity intern(final String id,
+            final WrappedOWLEntity.Types type) {
+        final WrappedOWLEntity found = this.find(id);
+        if (found != null) {
+            this.hits.incrementAndGet();
+            return found;
+        }
+        this.misses.incrementAndGet();
+        return this.intern(new WrappedOWLEntity(id, type));
+    }
+
+    /**
+     * Retrieves the singleton with the ID given, whether attached or not.
+     *
+     * @param id the entity ID
+     * @return the interned entity or <code>null</code> if there is none
+     */
+    private WrappedOWLEntity find(final String id) {
+        final Lock read = this.lock.readLock();
+        read.lock();
+        try {
+            final int slot = this.slots[this.slotOf(id)];
+            if (slot == 0)
+                return null;
+            return this.entityAt(slot - 1);
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the attached singleton with the ID given.  Detached entities
+     * are not found.
+     *
+     * @param id the entity ID
+     * @return the attached entity or <code>null</code> if there is none
+     */
+    public WrappedOWLEntity lookup(final String id) {
+        final Lock read = this.lock.readLock();
+        read.lock();
+        try {
+            final int slot = this.slots[this.slotOf(id)];
+            if ((slot == 0) || (this.entities[slot - 1] == null)) {
+                this.misses.incrementAndGet();
+                return null;
+            }
+            this.hits.incrementAndGet();
+            return this.entities[slot - 1];
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Attaches the entities given, so the table keeps them until they are
+     * released.  Entities that are not interned or have been interned under
+     * another singleton are ignored.
+     *
+     * @param c the entities to attach
+     */
+    public void attach(final Collection<? extends WrappedOWLEntity> c) {
+        final Lock write = this.lock.writeLock();
+        write.lock();
+        try {
+            for (WrappedOWLEntity e : c) {
+                final int slot = this.slots[this.slotOf(e.getID())];
+                if ((slot == 0) || (this.detached[slot - 1] == null)
+                        || (this.detached[slot - 1].get() != e))
+                    continue;
+                final int entry = slot - 1;
+                this.entities[entry] = e;
+                this.detached[entry] = null;
+                this.detachedCount--;
+                this.size++;
+            }
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Releases the entities given, detaching them.  Detached entities stay
+     * in the table until they have been garbage collected, and interning
+     * their IDs again before returns the same singletons.  Entities that are
+     * not attached are ignored.
+     *
+     * @param c the entities to release
+     */
+    public void release(final Collection<? extends WrappedOWLEntity> c) {
+        final Lock write = this.lock.writeLock();
+        write.lock();
+        try {
+            for (WrappedOWLEntity e : c) {
+                final int slot = this.slots[this.slotOf(e.getID())];
+                if ((slot == 0) || (this.entities[slot - 1] != e))
+                    continue;
+                final int entry = slot - 1;
+                this.entities[entry] = null;
+                this.detached[entry] = new Detached(e, entry, this.queue);
+                this.detachedCount++;
+                this.size--;
+            }
+            this.drain();
+            this.shrink();
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Frees the entries of all detached entities that have been garbage
+     * collected.
+     */
+    private void drain() {
+        Detached r = (Detached) this.queue.poll();
+        while (r != null) {
+            if (this.detached[r.entry] == r)
+                this.expunge(r.entry);
+            r = (Detached) this.queue.poll();
+        }
+        while ((this.bound > 0) && (this.entities[this.bound - 1] == null)
+                && (this.detached[this.bound - 1] == null))
+            this.free.clear(--this.bound);
+    }
+
+    /**
+     * Frees the entry of a detached entity that has been garbage collected.
+     *
+     * @param entry the entry
+     */
+    private void expunge(final int entry) {
+        final int mask = this.slots.length - 1;
+        int i = EntityTable.spread(this.hashes[entry]) & mask;
+        while (this.slots[i] != entry + 1)
+            i = (i + 1) & mask;
+        this.removeSlot(i);
+        this.detached[entry] = null;
+        this.detachedCount--;
+        this.free.set(entry);
+    }
+
+    /**
+     * Retrieves the entity with the entry given, whether attached or not.
+     *
+     * @param entry the entry
+     * @return the entity or <code>null</code> if the entry is free or the
+     *  entity has been garbage collected
+     */
+    private WrappedOWLEntity entityAt(final int entry) {
+        if (this.entities[entry] != null)
+            return this.entities[entry];
+        if (this.detached[entry] != null)
+            return this.detached[entry].get();
+        return null;
+    }
+
+    /**
+     * Finds the hash table slot of the ID given.
+     *
+     * @param id the entity ID
+     * @return the slot holding the entity with that ID, or the free slot it
+     *  would be stored in
+     */
+    private int slotOf(final String id) {
+        final int mask = this.slots.length - 1;
+        int i = EntityTable.spread(id.hashCode()) & mask;
+        while (this.slots[i] != 0) {
+            final WrappedOWLEntity e = this.entityAt(this.slots[i] - 1);
+            if ((e != null) && e.hasID(id))
+                break;
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Frees a hash table slot, moving later entities of the same probe
+     * sequence back so that all of them can still be found.
+     *
+     * @param slot the slot to free
+     */
+    private void removeSlot(final int slot) {
+        final int mask = this.slots.length - 1;
+        int hole = slot;
+        int i = (slot + 1) & mask;
+        while (this.slots[i] != 0) {
+            final int home = EntityTable.spread(
+                    this.hashes[this.slots[i] - 1]) & mask;
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                this.slots[hole] = this.slots[i];
+                hole = i;
+            }
+            i = (i + 1) & mask;
+        }
+        this.slots[hole] = 0;
+    }
+
+    /**
+     * Spreads the bits of a hash code, so IDs that differ in their last chars
+     * only do not end up in neighboring slots.
+     *
+     * @param hash the hash code
+     * @return the spread hash code
+     */
+    private static int spread(final int hash) {
+        final int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Adds a new detached entity to the table, reusing the lowest free
+     * entry.
+     *
+     * @param e the entity, not interned yet
+     * @param slot the free hash table slot for the entity
+     */
+    private void add(final WrappedOWLEntity e, final int slot) {
+        int entry = this.free.nextSetBit(0);
+        if (entry < 0) {
+            entry = this.bound++;
+            if (entry == this.entities.length)
+                this.resize(entry * 2);
+        } else {
+            this.free.clear(entry);
+        }
+        this.detached[entry] = new Detached(e, entry, this.queue);
+        this.hashes[entry] = e.getIDHash();
+        this.slots[slot] = entry + 1;
+        this.detachedCount++;
+        if ((this.size + this.detachedCount) * 2 > this.slots.length)
+            this.rehash(this.slots.length * 2);
+    }
+
+    /**
+     * Resizes the arrays indexed by entry.
+     *
+     * @param capacity the new capacity, at least the bound
+     */
+    private void resize(final int capacity) {
+        this.entities = Arrays.copyOf(this.entities, capacity);
+        this.hashes = Arrays.copyOf(this.hashes, capacity);
+        this.detached = Arrays.copyOf(this.detached, capacity);
+    }
+
+    /**
+     * Gives memory back once most of the detached entities have been
+     * garbage collected.
+     */
+    private void shrink() {
+        int capacity = this.entities.length;
+        while ((capacity > EntityTable.INITIAL_CAPACITY)
+                && (this.bound * 4 <= capacity))
+            capacity /= 2;
+        if (capacity < this.entities.length)
+            this.resize(capacity);
+
+        int length = this.slots.length;
+        while ((length > EntityTable.INITIAL_CAPACITY * 2)
+                && ((this.size + this.detachedCount) * 8 <= length))
+            length /= 2;
+        if (length < this.slots.length)
+            this.rehash(length);
+    }
+
+    /**
+     * Rebuilds the hash table.
+     *
+     * @param length the new length, a power of two
+     */
+    private void rehash(final int length) {
+        final int[] table = new int[length];
+        final int mask = length - 1;
+        for (int entry = 0; entry < this.bound; entry++) {
+            if ((this.entities[entry] == null)
+                    && (this.detached[entry] == null))
+                continue;
+            int i = EntityTable.spread(this.hashes[entry]) & mask;
+            while (table[i] != 0)
+                i = (i + 1) & mask;
+            table[i] = entry + 1;
+        }
+        this.slots = table;
+    }
+
+    /**
+     * Retrieves the number of attached entities.
+     *
+     * @return the number of entities
+     */
+    public int size() {
+        final Lock read = this.lock.readLock();
+        read.lock();
+        try {
+            return this.size;
+        } finally {
+            read.unlock();
+        }
+    }
+
+    /**
+     * Retrieves the number of lookups that found an interned entity.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /**
+     * Retrieves the number of lookups that did not find an interned entity.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Retrieves the share of lookups that found an interned entity.
+     *
+     * @return the hit rate between <code>0</code> and <code>1</code>, or
+     *  <code>0</code> if there were no lookups yet
+     */
+    public double getHitRate() {
+        final long hit = this.hits.get();
+        final long total = hit + this.misses.get();
+        return (total == 0) ? 0 : (double) hit / total;
+    }
+
+    /**
+     * Treats the detached entity with the ID given as if it had been garbage
+     * collected, so tests need not wait for the collector.  Attached entities
+     * are left alone.
+     *
+     * @param id the entity ID
+     */
+    void collect(final String id) {
+        final Lock write = this.lock.writeLock();
+        write.lock();
+        try {
+            final int slot = this.slots[this.slotOf(id)];
+            if ((slot != 0) && (this.detached[slot - 1] != null)) {
+                this.detached[slot - 1].clear();
+                this.detached[slot - 1].enqueue();
+            }
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * Removes all entities from the table, attached or not.  The removed
+     * entities are no longer interned.
+     */
+    public void clear() {
+        final Lock write = this.lock.writeLock();
+        write.lock();
+        try {
+            this.entities = new WrappedOWLEntity[EntityTable.INITIAL_CAPACITY];
+            this.hashes = new int[EntityTable.INITIAL_CAPACITY];
+            this.detached = new Detached[EntityTable.INITIAL_CAPACITY];
+            this.slots = new int[EntityTable.INITIAL_CAPACITY * 2];
+            this.free.clear();
+            this.size = 0;
+            this.detachedCount = 0;
+            this.bound = 0;
+        } finally {
+            write.unlock();
+        }
+    }
+
+    /**
+     * A weak reference to a detached entity, remembering its entry.
+     */
+    private static final class Detached
+            extends WeakReference<WrappedOWLEntity> {
+
+        /**
+         * The entry of the detached entity.
+         */
+        private final int entry;
+
+        /**
+         * Creates a new reference to the detached entity given.
+         *
+         * @param e the detached entity
+         * @param entityEntry the entity's entry
+         * @param q the queue to register the reference with
+         */
+        Detached(final WrappedOWLEntity e, final int entityEntry,
+                final ReferenceQueue<WrappedOWLEntity> q) {
+            super(e, q);
+            this.entry = entityEntry;
+        }
+
+    }
+
+}
@@ -0,0 +1,21 @@
+package de.unipassau.im.ontoint.model;
+
+/**
+ * A visitor receiving the entities of a {@link TemplateProposalTrie} that are
+ * within a bounded edit distance of a query string.
+ *
+ * @author Philipp Nolte
+ */
+public interface IFuzzyProposalVisitor {
+
+    /**
+     * Called for every entity found in lexicographic order of their keys.
+     *
+     * @param entity the entity found
+     * @param distance the edit distance between the query and the entity's key
+     * @return <code>false</code> to stop the traversal early, otherwise
+     *  <code>true</code>
+     */
+    boolean visit(WrappedOWLEntity entity, int distance);
+
+}
@@ -0,0 +1,20 @@
+package de.unipassau.im.ontoint.model;
+
+/**
+ * A visitor walking the entities stored in a {@link TemplateProposalTrie} in
+ * place, without collecting them first.
+ *
+ * @author Philipp Nolte
+ */
+public interface ITemplateProposalVisitor {
+
+    /**
+     * Called for every entity found in lexicographic order of their keys.
+     *
+     * @param entity the entity found
+     * @return <code>false</code> to stop the traversal early, otherwise
+     *  <code>true</code>
+     */
+    boolean visit(WrappedOWLEntity entity);
+
+}
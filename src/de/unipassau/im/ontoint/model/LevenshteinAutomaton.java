@@ -0,0 +1,106 @@
+package de.unipassau.im.ontoint.model;
+
+import java.util.Arrays;
+
+/**
+ * A Levenshtein automaton accepting all strings within a bounded edit distance
+ * of a query string.  The automaton is simulated one input char at a time:
+ * its state after reading <code>i</code> chars is the row of the edit
+ * distance matrix for the input read so far, capped at the maximum distance
+ * plus one.  The states of all prefixes of the current input are kept on a
+ * stack, so a depth-first walk through a {@link TemplateProposalTrie} can
+ * step into an edge and back without allocating new states.
+ *
+ * @author Philipp Nolte
+ */
+final class LevenshteinAutomaton {
+
+    /**
+     * The query string.
+     */
+    private final char[] query;
+
+    /**
+     * The maximum edit distance accepted.
+     */
+    private final int maxDistance;
+
+    /**
+     * The state stack.  The state at index <code>i</code> belongs to the
+     * input prefix of length <code>i</code>.
+     */
+    private int[][] states;
+
+    /**
+     * Creates a new automaton for the query and distance given.
+     *
+     * @param q the query string
+     * @param max the maximum edit distance accepted
+     */
+    LevenshteinAutomaton(final char[] q, final int max) {
+        if (max < 0)
+            throw new IllegalArgumentException();
+        this.query = q;
+        this.maxDistance = max;
+        this.states = new int[16][];
+        final int[] start = new int[q.length + 1];
+        for (int i = 0; i <= q.length; i++)
+            start[i] = Math.min(i, max + 1);
+        this.states[0] = start;
+    }
+
+    /**
+     * Retrieves the maximum edit distance accepted.
+     *
+     * @return the maximum distance
+     */
+    int getMaxDistance() {
+        return this.maxDistance;
+    }
+
+    /**
+     * Reads the input char given after the input prefix of the length given,
+     * replacing the state for the prefix one char longer.
+     *
+     * @param depth the length of the input prefix read so far
+     * @param c the next input char
+     * @return <code>true</code> if there still is an accepting state reachable
+     *  from the new state, <code>false</code> if no continuation of the input
+     *  can be accepted anymore
+     */
+    boolean step(final int depth, final char c) {
+        if (depth + 1 >= this.states.length)
+            this.states = Arrays.copyOf(this.states, this.states.length * 2);
+        final int[] row = this.states[depth];
+        int[] next = this.states[depth + 1];
+        if (next == null) {
+            next = new int[row.length];
+            this.states[depth + 1] = next;
+        }
+
+        final int cap = this.maxDistance + 1;
+        next[0] = Math.min(row[0] + 1, cap);
+        int min = next[0];
+        for (int i = 1; i < row.length; i++) {
+            final int substitute =
+                    row[i - 1] + ((this.query[i - 1] == c) ? 0 : 1);
+            final int v = Math.min(Math.min(next[i - 1] + 1, row[i] + 1),
+                    substitute);
+            next[i] = Math.min(v, cap);
+            min = Math.min(min, next[i]);
+        }
+        return min <= this.maxDistance;
+    }
+
+    /**
+     * Retrieves the edit distance between the query and the input prefix of
+     * the length given.
+     *
+     * @param depth the length of the input prefix
+     * @return the distance, capped at the maximum distance plus one
+     */
+    int distance(final int depth) {
+        return this.states[depth][this.query.length];
+    }
+
+}
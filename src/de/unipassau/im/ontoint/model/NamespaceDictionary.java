@@ -0,0 +1,79 @@
+package de.unipassau.im.ontoint.model;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An append-only dictionary of IRI namespaces.  Thousands of entities of an
+ * ontology usually share a single namespace, so {@link WrappedOWLEntity}s
+ * store the index of their namespace instead of the namespace text.  Indexes
+ * are never reused, so entities may refer to them for as long as they live.
+ * <p>
+ * Lookups by index do not lock, because they are done every time the full
+ * ID of an entity is rebuilt.
+ *
+ * @author Philipp Nolte
+ */
+final class NamespaceDictionary {
+
+    /**
+     * The namespaces by index, replaced whenever the dictionary grows.
+     */
+    private volatile String[] namespaces = new String[16];
+
+    /**
+     * The number of namespaces.
+     */
+    private volatile int size;
+
+    /**
+     * The indexes by namespace.
+     */
+    private final Map<String, Integer> indexes =
+            new HashMap<String, Integer>();
+
+    /**
+     * Retrieves the index of the namespace given, adding the namespace if it
+     * is new.
+     *
+     * @param namespace the namespace
+     * @return the index
+     */
+    synchronized int indexOf(final String namespace) {
+        final Integer index = this.indexes.get(namespace);
+        if (index != null)
+            return index;
+        final int toReturn = this.size;
+        String[] array = this.namespaces;
+        if (toReturn == array.length)
+            array = Arrays.copyOf(array, toReturn * 2);
+        array[toReturn] = namespace;
+        this.namespaces = array;
+        this.indexes.put(namespace, toReturn);
+        this.size = toReturn + 1;
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the namespace with the index given.
+     *
+     * @param index the index
+     * @return the namespace
+     */
+    String get(final int index) {
+        if ((index < 0) || (index >= this.size))
+            throw new IndexOutOfBoundsException("Namespace: " + index);
+        return this.namespaces[index];
+    }
+
+    /**
+     * Retrieves the number of namespaces.
+     *
+     * @return the number of namespaces
+     */
+    int size() {
+        return this.size;
+    }
+
+}
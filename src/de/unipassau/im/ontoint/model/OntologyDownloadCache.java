@@ -0,0 +1,478 @@
+package de.unipassau.im.ontoint.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent cache of ontology documents downloaded via HTTP.  Each
+ * document is stored once per content, named by its content hash, and an
+ * entry per location records the content together with the
+ * <code>ETag</code> and <code>Last-Modified</code> headers it was served
+ * with.
+ * <p>
+ * Cached documents are returned right away, so loading an ontology does not
+ * wait for a remote host once it has been downloaded.  Each cached location
+ * is revalidated once per session in the background with a conditional
+ * request, and a changed document is used the next time it is fetched.
+ *
+ * @author Philipp Nolte
+ */
+public final class OntologyDownloadCache {
+
+    /**
+     * The suffix of the files recording the cache entries.
+     */
+    private static final String ENTRY_SUFFIX = ".entry";
+
+    /**
+     * The suffix of the files containing the cached documents.
+     */
+    private static final String CONTENT_SUFFIX = ".owl";
+
+    /**
+     * The entry property recording the document location.
+     */
+    private static final String LOCATION = "location";
+
+    /**
+     * The entry property recording the content hash.
+     */
+    private static final String CONTENT = "content";
+
+    /**
+     * The entry property recording the <code>ETag</code> header.
+     */
+    private static final String ETAG = "etag";
+
+    /**
+     * The entry property recording the <code>Last-Modified</code> header.
+     */
+    private static final String LAST_MODIFIED = "lastModified";
+
+    /**
+     * The timeout for connecting to and reading from remote hosts in
+     * milliseconds.
+     */
+    private static final int TIMEOUT = 30000;
+
+    /**
+     * The <code>Accept</code> header sent with every request, the same the
+     * OWL API sends when it downloads a document itself.  Hosts serving
+     * several formats by content negotiation would otherwise answer with
+     * HTML.
+     */
+    private static final String ACCEPT = "application/rdf+xml, "
+            + "application/xml; q=0.5, text/xml; q=0.3, */*; q=0.2";
+
+    /**
+     * The maximum number of redirects followed per download.
+     */
+    private static final int MAX_REDIRECTS = 10;
+
+    /**
+     * The directory containing the cache.
+     */
+    private final File directory;
+
+    /**
+     * The locations revalidated in this session.
+     */
+    private final Set<String> revalidated =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * The thread revalidating the cached documents.  It times out when idle.
+     */
+    private final ThreadPoolExecutor revalidationExecutor;
+
+    /**
+     * Creates a new cache storing its documents in the directory given.  The
+     * directory is created if necessary.
+     *
+     * @param cacheDirectory the directory to store the documents in
+     */
+    public OntologyDownloadCache(final File cacheDirectory) {
+        this.directory = cacheDirectory;
+        this.revalidationExecutor = new ThreadPoolExecutor(1, 1, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread toReturn =
+                        new Thread(r, "Ontology Download Cache");
+                toReturn.setDaemon(true);
+                return toReturn;
+            }
+        });
+        this.revalidationExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Can documents at the location given be cached?
+     *
+     * @param location the document location
+     * @return <code>true</code> if the location is a HTTP(S) URI
+     */
+    public static boolean isCacheable(final URI location) {
+        return "http".equalsIgnoreCase(location.getScheme())
+                || "https".equalsIgnoreCase(location.getScheme());
+    }
+
+    /**
+     * Retrieves the cached copy of the document at the location given.  A
+     * cached copy is returned right away and revalidated in the background,
+     * otherwise the document is downloaded first.
+     *
+     * @param location the document location
+     * @return the file containing the cached copy
+     * @throws IOException if the document is not cached and could not be
+     *  downloaded
+     */
+    public File fetch(final URI location) throws IOException {
+        final Properties entry = this.readEntry(location);
+        if (entry != null) {
+            final File toReturn = this.getContentFile(entry);
+            if (toReturn.isFile()) {
+                if (this.revalidated.add(location.toString()))
+                    this.revalidate(location);
+                return toReturn;
+            }
+        }
+        this.revalidated.add(location.toString());
+        return this.getContentFile(this.download(location, null));
+    }
+
+    /**
+     * Revalidates the cached copy of the document at the location given in
+     * the background.  The document is only downloaded again if the remote
+     * host reports a change.
+     *
+     * @param location the document location
+     * @return the revalidation, resulting in <code>true</code> if the cached
+     *  copy has been replaced
+     */
+    public Future<Boolean> revalidate(final URI location) {
+        final FutureTask<Boolean> toReturn =
+                new FutureTask<Boolean>(new Callable<Boolean>() {
+            public Boolean call() throws IOException {
+                final Properties entry = OntologyDownloadCache.this
+                        .readEntry(location);
+                return OntologyDownloadCache.this.download(location, entry)
+                        != entry;
+            }
+        });
+        this.revalidationExecutor.execute(toReturn);
+        return toReturn;
+    }
+
+    /**
+     * Removes the cached copy of the document at the location given, eg.
+     * because it could not be parsed.  The next fetch downloads the document
+     * again.
+     *
+     * @param location the document location
+     * @throws IOException if the cache entry could not be read
+     */
+    public void evict(final URI location) throws IOException {
+        final Properties entry = this.readEntry(location);
+        if (entry == null)
+            return;
+        this.getEntryFile(location).delete();
+        this.release(entry.getProperty(OntologyDownloadCache.CONTENT));
+    }
+
+    /**
+     * Retrieves the content hash of the cached copy of the document at the
+     * location given, without revalidating it.
+     *
+     * @param location the document location
+     * @return the content hash or <code>null</code> if the document is not
+     *  cached
+     * @throws IOException if the cache entry could not be read
+     */
+    byte[] getContentHash(final String location) throws IOException {
+        final URI uri;
+        try {
+            uri = new URI(location);
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (!OntologyDownloadCache.isCacheable(uri))
+            return null;
+        final Properties entry = this.readEntry(uri);
+        if ((entry == null) || !this.getContentFile(entry).isFile())
+            return null;
+        try {
+            return DocumentFingerprint.fromHex(
+                    entry.getProperty(OntologyDownloadCache.CONTENT));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Downloads the document at the location given, unless it has not
+     * changed since the cache entry given was recorded.
+     *
+     * @param location the document location
+     * @param entry the current cache entry or <code>null</code>
+     * @return the new cache entry or <code>entry</code> if the document has
+     *  not changed
+     * @throws IOException if the document could not be downloaded
+     */
+    private Properties download(final URI location, final Properties entry)
+        throws IOException {
+        final HttpURLConnection connection = this.connect(location, entry);
+        try {
+            final int status = connection.getResponseCode();
+            if ((status == HttpURLConnection.HTTP_NOT_MODIFIED)
+                    && (entry != null))
+                return entry;
+            if (status != HttpURLConnection.HTTP_OK)
+                throw new IOException("Unexpected HTTP status " + status
+                        + " for " + location);
+
+            final String content = this.store(connection.getInputStream());
+            final Properties toReturn = new Properties();
+            toReturn.setProperty(OntologyDownloadCache.LOCATION,
+                    location.toString());
+            toReturn.setProperty(OntologyDownloadCache.CONTENT, content);
+            if (connection.getHeaderField("ETag") != null)
+                toReturn.setProperty(OntologyDownloadCache.ETAG,
+                        connection.getHeaderField("ETag"));
+            if (connection.getLastModified() != 0)
+                toReturn.setProperty(OntologyDownloadCache.LAST_MODIFIED,
+                        Long.toString(connection.getLastModified()));
+            this.writeEntry(location, toReturn);
+            if ((entry != null) && !content.equals(
+                    entry.getProperty(OntologyDownloadCache.CONTENT)))
+                this.release(entry.getProperty(OntologyDownloadCache.CONTENT));
+            return toReturn;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Requests the document at the location given, following redirects.
+     * {@link HttpURLConnection} does not follow redirects from HTTP to HTTPS
+     * or back, which many ontology hosts use, so all redirects are followed
+     * here.
+     *
+     * @param location the document location
+     * @param entry the current cache entry or <code>null</code>
+     * @return the connection to the final location, which has not been
+     *  redirected
+     * @throws IOException if the document could not be requested
+     */
+    private HttpURLConnection connect(final URI location,
+            final Properties entry) throws IOException {
+        URI current = location;
+        for (int i = 0; i <= OntologyDownloadCache.MAX_REDIRECTS; i++) {
+            final HttpURLConnection toReturn =
+                    (HttpURLConnection) current.toURL().openConnection();
+            toReturn.setInstanceFollowRedirects(false);
+            toReturn.setConnectTimeout(OntologyDownloadCache.TIMEOUT);
+            toReturn.setReadTimeout(OntologyDownloadCache.TIMEOUT);
+            toReturn.setRequestProperty("Accept", OntologyDownloadCache.ACCEPT);
+            if (entry != null) {
+                final String etag =
+                        entry.getProperty(OntologyDownloadCache.ETAG);
+                if (etag != null)
+                    toReturn.setRequestProperty("If-None-Match", etag);
+                final String lastModified =
+                        entry.getProperty(OntologyDownloadCache.LAST_MODIFIED);
+                if (lastModified != null)
+                    toReturn.setIfModifiedSince(Long.parseLong(lastModified));
+            }
+
+            final String target = toReturn.getHeaderField("Location");
+            if (!OntologyDownloadCache.isRedirect(toReturn.getResponseCode())
+                    || (target == null))
+                return toReturn;
+            toReturn.disconnect();
+            try {
+                current = current.resolve(new URI(target));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid redirect to " + target
+                        + " for " + location);
+            }
+            if (!OntologyDownloadCache.isCacheable(current))
+                throw new IOException("Unsupported redirect to " + current
+                        + " for " + location);
+        }
+        throw new IOException("Too many redirects for " + location);
+    }
+
+    /**
+     * Is the HTTP status given a redirect to be followed?
+     *
+     * @param status the HTTP status
+     * @return <code>true</code> if the status redirects to another location
+     */
+    private static boolean isRedirect(final int status) {
+        return (status == HttpURLConnection.HTTP_MOVED_PERM)
+                || (status == HttpURLConnection.HTTP_MOVED_TEMP)
+                || (status == HttpURLConnection.HTTP_SEE_OTHER)
+                || (status == 307) || (status == 308);
+    }
+
+    /**
+     * Stores a downloaded document under its content hash.
+     *
+     * @param in the document's content
+     * @return the content hash
+     * @throws IOException if the document could not be stored
+     */
+    private String store(final InputStream in) throws IOException {
+        this.directory.mkdirs();
+        final File temp = File.createTempFile("download", ".tmp",
+                this.directory);
+        try {
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                final byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0)
+                    out.write(buffer, 0, n);
+            } finally {
+                out.close();
+                in.close();
+            }
+
+            final String toReturn = DocumentFingerprint.toHex(
+                    DocumentFingerprint.hash(temp));
+            final File content = new File(this.directory,
+                    toReturn + OntologyDownloadCache.CONTENT_SUFFIX);
+            if (!content.isFile() && !temp.renameTo(content))
+                throw new IOException("Could not store " + content);
+            return toReturn;
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Deletes the document with the content hash given, unless another cache
+     * entry still refers to it.
+     *
+     * @param content the content hash
+     * @throws IOException if a cache entry could not be read
+     */
+    private synchronized void release(final String content)
+        throws IOException {
+        final File[] entries = this.directory.listFiles();
+        if (entries == null)
+            return;
+        for (File file : entries) {
+            if (!file.getName().endsWith(OntologyDownloadCache.ENTRY_SUFFIX))
+                continue;
+            final Properties entry = new Properties();
+            final InputStream in = new FileInputStream(file);
+            try {
+                entry.load(in);
+            } finally {
+                in.close();
+            }
+            if (content.equals(
+                    entry.getProperty(OntologyDownloadCache.CONTENT)))
+                return;
+        }
+        new File(this.directory,
+                content + OntologyDownloadCache.CONTENT_SUFFIX).delete();
+    }
+
+    /**
+     * Reads the cache entry of the location given.
+     *
+     * @param location the document location
+     * @return the entry or <code>null</code> if the location is not cached
+     * @throws IOException if the entry could not be read
+     */
+    private Properties readEntry(final URI location) throws IOException {
+        final File file = this.getEntryFile(location);
+        if (!file.isFile())
+            return null;
+        final Properties toReturn = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            toReturn.load(in);
+        } finally {
+            in.close();
+        }
+        if (!location.toString().equals(
+                toReturn.getProperty(OntologyDownloadCache.LOCATION)))
+            return null;
+        return toReturn;
+    }
+
+    /**
+     * Writes the cache entry of the location given.  The entry is written to
+     * a temporary file first, so readers never see a partial entry.
+     *
+     * @param location the document location
+     * @param entry the entry
+     * @throws IOException if the entry could not be written
+     */
+    private synchronized void writeEntry(final URI location,
+            final Properties entry) throws IOException {
+        final File file = this.getEntryFile(location);
+        final File temp = File.createTempFile("entry", ".tmp",
+                this.directory);
+        try {
+            final OutputStream out = new FileOutputStream(temp);
+            try {
+                entry.store(out, null);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)
+                    && !(file.delete() && temp.renameTo(file)))
+                throw new IOException("Could not write " + file);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Retrieves the file recording the cache entry of the location given.
+     *
+     * @param location the document location
+     * @return the entry file
+     */
+    private File getEntryFile(final URI location) {
+        return new File(this.directory,
+                DocumentFingerprint.nameOf(location.toString())
+                + OntologyDownloadCache.ENTRY_SUFFIX);
+    }
+
+    /**
+     * Retrieves the file containing the document of the cache entry given.
+     *
+     * @param entry the cache entry
+     * @return the content file
+     */
+    private File getContentFile(final Properties entry) {
+        return new File(this.directory,
+                entry.getProperty(OntologyDownloadCache.CONTENT)
+                + OntologyDownloadCache.CONTENT_SUFFIX);
+    }
+
+}
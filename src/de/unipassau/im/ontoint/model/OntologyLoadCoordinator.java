@@ -0,0 +1,536 @@
+package de.unipassau.im.ontoint.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.io.StreamDocumentSource;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLImportsDeclaration;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyIRIMapper;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+
+/**
+ * Loads ontology documents and their import closures into a
+ * {@link WrappedOWLOntologyManager}.  Documents are parsed in parallel, each
+ * by its own {@link OWLOntologyManager}, because the wrapped manager must not
+ * be used by more than one thread at a time.  The parsed ontologies are then
+ * merged into the wrapped manager one by one.
+ * <p>
+ * Imports are not followed by the parsing managers.  They are loaded as
+ * documents of their own instead, and a document requested by several loads
+ * at the same time is parsed only once.  Restoring many ontologies sharing
+ * the same imports thus takes about as long as loading the largest one.
+ * <p>
+ * The OWL API guesses the types of entities a document uses without
+ * declaring them, eg. a property only declared by an import becomes an
+ * annotation property when used with a literal.  A document is therefore
+ * parsed with the declarations of its imports visible, as far as they are
+ * already loaded.  This is the case whenever a document is parsed again, eg.
+ * when an offloaded or restored ontology is needed, but not when a document
+ * is loaded for the first time: it is parsed before its imports, so its
+ * undeclared entities may be typed differently than by a parser following
+ * the imports.
+ * <p>
+ * Remote documents are read from an {@link OntologyDownloadCache}, if one
+ * has been set.  Local documents that have not changed since they were last
+ * parsed are restored from their {@link OntologySnapshot}, if a snapshot
+ * directory has been set.
+ *
+ * @author Philipp Nolte
+ */
+public final class OntologyLoadCoordinator {
+
+    /**
+     * The document IRI imports are redirected to while parsing.  It cannot
+     * be loaded, so the parsing managers skip all imports.
+     */
+    private static final IRI DEFERRED_IMPORT =
+            IRI.create("urn:ontoint:deferred-import");
+
+    /**
+     * Redirects all imports to {@link OntologyLoadCoordinator#DEFERRED_IMPORT}.
+     */
+    private static final OWLOntologyIRIMapper DEFER_IMPORTS =
+            new OWLOntologyIRIMapper() {
+        public IRI getDocumentIRI(final IRI ontologyIRI) {
+            return OntologyLoadCoordinator.DEFERRED_IMPORT;
+        }
+    };
+
+    /**
+     * The manager to merge the parsed ontologies into.
+     */
+    private final WrappedOWLOntologyManager manager;
+
+    /**
+     * The documents currently being loaded by their IRI.
+     */
+    private final ConcurrentMap<String, Flight> flights =
+            new ConcurrentHashMap<String, Flight>();
+
+    /**
+     * The threads parsing the documents, one per core.  Idle threads time
+     * out, so the pool costs nothing between imports.
+     */
+    private final ThreadPoolExecutor loadExecutor;
+
+    /**
+     * The cache of remote documents or <code>null</code> to always download
+     * them.
+     */
+    private volatile OntologyDownloadCache downloadCache;
+
+    /**
+     * The IRIs of the ontologies imported by the documents loaded so far, by
+     * document IRI.
+     */
+    private final ConcurrentMap<String, List<IRI>> knownImports =
+            new ConcurrentHashMap<String, List<IRI>>();
+
+    /**
+     * The suffix of the snapshot files.
+     */
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    /**
+     * The directory containing the snapshots of local documents or
+     * <code>null</code> to always parse them.
+     */
+    private volatile File snapshotDirectory;
+
+    /**
+     * Creates a new {@link OntologyLoadCoordinator} merging into the manager
+     * given.
+     *
+     * @param target the manager to merge the parsed ontologies into
+     */
+    OntologyLoadCoordinator(final WrappedOWLOntologyManager target) {
+        this.manager = target;
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        this.loadExecutor = new ThreadPoolExecutor(cores, cores, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread toReturn = new Thread(r, "Ontology Loader");
+                toReturn.setDaemon(true);
+                return toReturn;
+            }
+        });
+        this.loadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the cache to read remote documents from.
+     *
+     * @param cache the cache or <code>null</code> to always download remote
+     *  documents
+     */
+    public void setDownloadCache(final OntologyDownloadCache cache) {
+        this.downloadCache = cache;
+    }
+
+    /**
+     * Retrieves the cache remote documents are read from.
+     *
+     * @return the cache or <code>null</code> if remote documents are always
+     *  downloaded
+     */
+    public OntologyDownloadCache getDownloadCache() {
+        return this.downloadCache;
+    }
+
+    /**
+     * Sets the directory to keep the snapshots of local documents in.
+     *
+     * @param directory the directory or <code>null</code> to always parse
+     *  local documents
+     */
+    public void setSnapshotDirectory(final File directory) {
+        this.snapshotDirectory = directory;
+    }
+
+    /**
+     * Loads the ontology document given and its import closure, blocking
+     * until all of them have been merged into the manager.  Documents already
+     * loaded are skipped.  A document that cannot be loaded does not stop the
+     * other documents of the closure from being loaded.
+     *
+     * @param documentIRI the IRI of the document to load
+     * @param failures the collection to add the reasons of failed loads to
+     * @return the ontologies added to the manager, the document's ontology
+     *  first.  Ontologies shared with concurrent loads are returned by only
+     *  one of them.
+     */
+    public List<WrappedOWLOntology> load(final IRI documentIRI,
+            final Collection<? super OWLOntologyCreationException> failures) {
+        final List<WrappedOWLOntology> toReturn =
+                new ArrayList<WrappedOWLOntology>();
+        final Set<String> requested = new HashSet<String>();
+        final LinkedList<Flight> pending = new LinkedList<Flight>();
+
+        requested.add(documentIRI.toString());
+        pending.add(this.request(documentIRI, false));
+        while (!pending.isEmpty()) {
+            final Loaded loaded;
+            try {
+                loaded = OntologyLoadCoordinator.await(pending.removeFirst());
+            } catch (OWLOntologyCreationException e) {
+                failures.add(e);
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            if ((loaded.ontology != null)
+                    && loaded.reported.compareAndSet(false, true))
+                toReturn.add(loaded.ontology);
+            for (IRI iri : loaded.imports)
+                if (requested.add(iri.toString()))
+                    pending.add(this.request(iri, true));
+        }
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the running load of the document given, starting a new one
+     * if there is none.
+     *
+     * @param iri the IRI of the document to load
+     * @param imported <code>true</code> if the document is imported by an
+     *  other ontology
+     * @return the load of the document
+     */
+    private Flight request(final IRI iri, final boolean imported) {
+        final String key = iri.toString();
+        Flight toReturn = this.flights.get(key);
+        if (toReturn == null) {
+            final Flight flight = new Flight(key, iri, imported);
+            toReturn = this.flights.putIfAbsent(key, flight);
+            if (toReturn == null) {
+                toReturn = flight;
+                this.loadExecutor.execute(flight);
+            }
+        }
+        return toReturn;
+    }
+
+    /**
+     * Parses the document given with a private {@link OWLOntologyManager} and
+     * merges the ontology into the manager.  A local document is restored
+     * from its snapshot instead, if it still matches; otherwise a new
+     * snapshot is taken after parsing it.
+     *
+     * @param iri the IRI of the document to load
+     * @param imported <code>true</code> if the document is imported by an
+     *  other ontology
+     * @return the loaded ontology and its imports
+     * @throws OWLOntologyCreationException if the document could not be
+     *  loaded
+     */
+    private Loaded parse(final IRI iri, final boolean imported)
+        throws OWLOntologyCreationException {
+        if (this.manager.isLoaded(iri))
+            return new Loaded(null, Collections.<IRI>emptyList());
+
+        final File snapshotFile = this.getSnapshotFile(iri);
+        if (snapshotFile != null) {
+            final OntologySnapshot snapshot =
+                    OntologyLoadCoordinator.readSnapshot(snapshotFile);
+            if (snapshot != null) {
+                this.knownImports.put(iri.toString(), snapshot.getImports());
+                return new Loaded(this.manager.restore(snapshot, iri,
+                        imported), snapshot.getImports());
+            }
+        }
+
+        DocumentFingerprint fingerprint = null;
+        if (snapshotFile != null) {
+            try {
+                fingerprint = DocumentFingerprint.of(iri.toString());
+            } catch (IOException e) {
+                // the parser reports unreadable documents
+            }
+        }
+        final OWLOntology parsed = this.parseDocument(iri);
+        if (fingerprint != null) {
+            try {
+                OntologySnapshot.of(parsed, fingerprint).write(snapshotFile);
+            } catch (IOException e) {
+                snapshotFile.delete();
+            }
+        }
+
+        final List<IRI> imports = new ArrayList<IRI>();
+        for (OWLImportsDeclaration declaration
+                : parsed.getImportsDeclarations())
+            imports.add(declaration.getIRI());
+        this.knownImports.put(iri.toString(), imports);
+        return new Loaded(this.manager.merge(parsed, iri, imported), imports);
+    }
+
+    /**
+     * Retrieves the snapshot file of the document given.
+     *
+     * @param iri the IRI of the document
+     * @return the snapshot file or <code>null</code> if the document is not
+     *  a local file or no snapshot directory has been set
+     */
+    private File getSnapshotFile(final IRI iri) {
+        final File directory = this.snapshotDirectory;
+        if ((directory == null)
+                || (DocumentFingerprint.toFile(iri.toString()) == null))
+            return null;
+        return new File(directory, DocumentFingerprint.nameOf(iri.toString())
+                + OntologyLoadCoordinator.SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Reads the snapshot file given.
+     *
+     * @param file the snapshot file
+     * @return the snapshot or <code>null</code> if there is no snapshot of
+     *  the current format or the document has changed since it was taken
+     */
+    private static OntologySnapshot readSnapshot(final File file) {
+        if (!file.isFile())
+            return null;
+        try {
+            final OntologySnapshot toReturn = OntologySnapshot.read(file);
+            if ((toReturn != null) && toReturn.matches())
+                return toReturn;
+        } catch (IOException e) {
+            // parse the document instead
+        }
+        return null;
+    }
+
+    /**
+     * Parses the document given with a private {@link OWLOntologyManager},
+     * skipping its imports.  The declarations of the imports known to be
+     * loaded already are visible to the parser.  Remote documents are read
+     * from the download cache, but still parsed with their remote IRI as the
+     * base for relative IRIs.  A cached copy that cannot be parsed, eg. an
+     * error page served with status 200, is evicted and downloaded once
+     * more.  If the cache fails, the parser downloads the document itself.
+     *
+     * @param iri the IRI of the document to parse
+     * @return the parsed ontology
+     * @throws OWLOntologyCreationException if the document could not be
+     *  parsed
+     */
+    OWLOntology parseDocument(final IRI iri)
+        throws OWLOntologyCreationException {
+        final OntologyDownloadCache cache = this.downloadCache;
+        if ((cache == null)
+                || !OntologyDownloadCache.isCacheable(iri.toURI()))
+            return this.createParser(iri)
+                    .loadOntologyFromOntologyDocument(iri);
+        try {
+            return OntologyLoadCoordinator.parseCached(
+                    this.createParser(iri), cache, iri);
+        } catch (OWLOntologyCreationException e) {
+            try {
+                cache.evict(iri.toURI());
+            } catch (IOException ex) {
+                throw e;
+            }
+            return OntologyLoadCoordinator.parseCached(
+                    this.createParser(iri), cache, iri);
+        }
+    }
+
+    /**
+     * Parses the cached copy of the remote document given.  If the cache
+     * fails, the parser downloads the document itself.
+     *
+     * @param parser the parsing manager
+     * @param cache the download cache
+     * @param iri the IRI of the document to parse
+     * @return the parsed ontology
+     * @throws OWLOntologyCreationException if the document could not be
+     *  parsed
+     */
+    private static OWLOntology parseCached(final OWLOntologyManager parser,
+            final OntologyDownloadCache cache, final IRI iri)
+        throws OWLOntologyCreationException {
+        final InputStream in;
+        try {
+            in = new FileInputStream(cache.fetch(iri.toURI()));
+        } catch (IOException e) {
+            return parser.loadOntologyFromOntologyDocument(iri);
+        }
+        try {
+            return parser.loadOntologyFromOntologyDocument(
+                    new StreamDocumentSource(in, iri));
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * Creates a private {@link OWLOntologyManager} for parsing the document
+     * given, skipping its imports.  Each import known to be loaded already is
+     * stood in for by an ontology containing its declarations, which the
+     * parser finds instead of loading the import.
+     *
+     * @param iri the IRI of the document to parse
+     * @return the parsing manager
+     */
+    private OWLOntologyManager createParser(final IRI iri) {
+        final OWLOntologyManager toReturn =
+                OWLManager.createOWLOntologyManager();
+        toReturn.setSilentMissingImportsHandling(true);
+        final List<IRI> imports = this.knownImports.get(iri.toString());
+        if (imports != null) {
+            for (IRI imported : imports) {
+                final Set<OWLAxiom> declarations =
+                        this.manager.getDeclarations(imported);
+                if ((declarations == null) || imported.equals(iri))
+                    continue;
+                try {
+                    toReturn.createOntology(declarations, imported);
+                } catch (OWLOntologyCreationException e) {
+                    // parse without the import's declarations
+                }
+            }
+        }
+
+        /*
+         * The stand-ins are created before the mapper is added, so they keep
+         * their own document IRIs.
+         */
+        toReturn.addIRIMapper(OntologyLoadCoordinator.DEFER_IMPORTS);
+        return toReturn;
+    }
+
+    /**
+     * Waits for the load given to complete.
+     *
+     * @param flight the load to wait for
+     * @return the result of the load
+     * @throws OWLOntologyCreationException if the document could not be
+     *  loaded
+     * @throws InterruptedException if the waiting thread was interrupted
+     */
+    private static Loaded await(final Flight flight)
+        throws OWLOntologyCreationException, InterruptedException {
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OWLOntologyCreationException)
+                throw (OWLOntologyCreationException) e.getCause();
+            if (e.getCause() instanceof Error)
+                throw (Error) e.getCause();
+            throw new OWLOntologyCreationException(e.getCause());
+        }
+    }
+
+    /**
+     * The result of loading a single document.
+     */
+    private static final class Loaded {
+
+        /**
+         * The ontology added to the manager or <code>null</code> if it had
+         * already been loaded.
+         */
+        private final WrappedOWLOntology ontology;
+
+        /**
+         * The IRIs of the ontologies imported by the document.
+         */
+        private final List<IRI> imports;
+
+        /**
+         * Has the ontology been returned by a load yet?
+         */
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        /**
+         * Creates a new result.
+         *
+         * @param added the ontology added to the manager or
+         *  <code>null</code>
+         * @param importIRIs the IRIs of the imported ontologies
+         */
+        private Loaded(final WrappedOWLOntology added,
+                final List<IRI> importIRIs) {
+            this.ontology = added;
+            this.imports = importIRIs;
+        }
+
+    }
+
+    /**
+     * The load of a single document, shared by all loads requesting the
+     * document while it runs.
+     */
+    private final class Flight extends FutureTask<Loaded> {
+
+        /**
+         * The key of the load in the running loads.
+         */
+        private final String key;
+
+        /**
+         * Creates a new load of the document given.
+         *
+         * @param flightKey the key of the load in the running loads
+         * @param iri the IRI of the document to load
+         * @param imported <code>true</code> if the document is imported by an
+         *  other ontology
+         */
+        private Flight(final String flightKey, final IRI iri,
+                final boolean imported) {
+            super(new Callable<Loaded>() {
+                public Loaded call() throws OWLOntologyCreationException {
+                    return OntologyLoadCoordinator.this.parse(iri, imported);
+                }
+            });
+            this.key = flightKey;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        protected void done() {
+
+            /*
+             * Later requests for the document find it loaded in the manager,
+             * or try again if it failed.
+             */
+            OntologyLoadCoordinator.this.flights.remove(this.key, this);
+        }
+
+    }
+
+}
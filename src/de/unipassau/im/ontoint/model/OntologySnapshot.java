@@ -0,0 +1,389 @@
+package de.unipassau.im.ontoint.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.semanticweb.owlapi.model.AddAxiom;
+import org.semanticweb.owlapi.model.AddImport;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.model.OWLDataFactory;
+import org.semanticweb.owlapi.model.OWLEntity;
+import org.semanticweb.owlapi.model.OWLImportsDeclaration;
+import org.semanticweb.owlapi.model.OWLOntology;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyID;
+import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.model.OWLSubClassOfAxiom;
+
+/**
+ * A binary snapshot of the parts of a parsed ontology the plugin uses: its
+ * ID, imports, the entities of its signature and the asserted class
+ * hierarchy between named classes.  Reading a snapshot is a fraction of the
+ * cost of parsing the document, so unchanged documents are restored from
+ * their snapshot on startup.  A snapshot records the
+ * {@link DocumentFingerprint} of the document it was taken from and is only
+ * used as long as the document still matches:
+ * <pre>
+ * int magic, int version,
+ * int length, char[] location, long size, long modified,
+ * int length, byte[] hash,
+ * UTF ontology IRI, UTF version IRI (empty if absent),
+ * int imports,  imports  * UTF IRI,
+ * int entities, entities * (byte type, UTF ID),
+ * int edges,    edges    * (int subclass, int superclass)
+ * </pre>
+ * Edges refer to the entities by their position.
+ *
+ * @author Philipp Nolte
+ */
+public final class OntologySnapshot {
+
+    /**
+     * The magic number at the start of every snapshot file.
+     */
+    private static final int MAGIC = 0x4f4e5453;
+
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * The fingerprint of the document the snapshot was taken from.
+     */
+    private final DocumentFingerprint fingerprint;
+
+    /**
+     * The ontology IRI or <code>null</code> if the ontology is anonymous.
+     */
+    private final String ontologyIRI;
+
+    /**
+     * The version IRI or <code>null</code>.
+     */
+    private final String versionIRI;
+
+    /**
+     * The IRIs of the imported ontologies.
+     */
+    private final List<String> imports;
+
+    /**
+     * The types of the entities.
+     */
+    private final byte[] types;
+
+    /**
+     * The IDs of the entities.
+     */
+    private final String[] ids;
+
+    /**
+     * The asserted subclass edges, pairs of subclass and superclass
+     * positions.
+     */
+    private final int[] edges;
+
+    /**
+     * Creates a new snapshot from the data given.
+     *
+     * @param documentFingerprint the fingerprint of the document
+     * @param ontology the ontology IRI or <code>null</code>
+     * @param version the version IRI or <code>null</code>
+     * @param importIRIs the IRIs of the imported ontologies
+     * @param entityTypes the types of the entities
+     * @param entityIDs the IDs of the entities
+     * @param subclassEdges the subclass edges
+     */
+    private OntologySnapshot(final DocumentFingerprint documentFingerprint,
+            final String ontology, final String version,
+            final List<String> importIRIs, final byte[] entityTypes,
+            final String[] entityIDs, final int[] subclassEdges) {
+        this.fingerprint = documentFingerprint;
+        this.ontologyIRI = ontology;
+        this.versionIRI = version;
+        this.imports = importIRIs;
+        this.types = entityTypes;
+        this.ids = entityIDs;
+        this.edges = subclassEdges;
+    }
+
+    /**
+     * Takes a snapshot of the parsed ontology given.
+     *
+     * @param ontology the parsed ontology
+     * @param documentFingerprint the fingerprint of the document the
+     *  ontology was parsed from, taken before parsing it
+     * @return the snapshot
+     */
+    public static OntologySnapshot of(final OWLOntology ontology,
+            final DocumentFingerprint documentFingerprint) {
+        final OWLOntologyID id = ontology.getOntologyID();
+        final List<String> importIRIs = new ArrayList<String>();
+        for (OWLImportsDeclaration declaration
+                : ontology.getImportsDeclarations())
+            importIRIs.add(declaration.getIRI().toString());
+
+        final List<OWLEntity> signature =
+                WrappedOWLEntity.getSignature(ontology);
+        final byte[] entityTypes = new byte[signature.size()];
+        final String[] entityIDs = new String[signature.size()];
+        final Map<OWLEntity, Integer> positions =
+                new HashMap<OWLEntity, Integer>();
+        for (int i = 0; i < entityIDs.length; i++) {
+            final OWLEntity entity = signature.get(i);
+            entityTypes[i] = (byte) WrappedOWLEntity.typeOf(entity).ordinal();
+            entityIDs[i] = entity.toStringID();
+            positions.put(entity, i);
+        }
+
+        int[] subclassEdges = new int[64];
+        int size = 0;
+        for (OWLClass subclass : ontology.getClassesInSignature(false)) {
+            for (OWLSubClassOfAxiom axiom
+                    : ontology.getSubClassAxiomsForSubClass(subclass)) {
+                if (axiom.getSuperClass().isAnonymous())
+                    continue;
+                final Integer superclass =
+                        positions.get(axiom.getSuperClass().asOWLClass());
+                if (superclass == null)
+                    continue;
+                if (size + 2 > subclassEdges.length)
+                    subclassEdges = OntologySnapshot.grow(subclassEdges);
+                subclassEdges[size++] = positions.get(subclass);
+                subclassEdges[size++] = superclass;
+            }
+        }
+        final int[] trimmed = new int[size];
+        System.arraycopy(subclassEdges, 0, trimmed, 0, size);
+
+        return new OntologySnapshot(documentFingerprint,
+                id.isAnonymous() ? null : id.getOntologyIRI().toString(),
+                (id.getVersionIRI() == null) ? null
+                        : id.getVersionIRI().toString(),
+                importIRIs, entityTypes, entityIDs, trimmed);
+    }
+
+    /**
+     * Doubles the size of the array given.
+     *
+     * @param array the array
+     * @return the larger copy
+     */
+    private static int[] grow(final int[] array) {
+        final int[] toReturn = new int[array.length * 2];
+        System.arraycopy(array, 0, toReturn, 0, array.length);
+        return toReturn;
+    }
+
+    /**
+     * Reads the snapshot file given.
+     *
+     * @param file the snapshot file
+     * @return the snapshot or <code>null</code> if the file is not a
+     *  snapshot of the current format
+     * @throws IOException if the file could not be read
+     */
+    public static OntologySnapshot read(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ((in.readInt() != OntologySnapshot.MAGIC)
+                    || (in.readInt() != OntologySnapshot.VERSION))
+                return null;
+
+            final char[] location = new char[in.readInt()];
+            for (int i = 0; i < location.length; i++)
+                location[i] = in.readChar();
+            final long size = in.readLong();
+            final long modified = in.readLong();
+            final byte[] hash = new byte[in.readInt()];
+            in.readFully(hash);
+            final DocumentFingerprint documentFingerprint =
+                    new DocumentFingerprint(new String(location), size,
+                            modified, hash);
+
+            final String ontology = in.readUTF();
+            final String version = in.readUTF();
+            final List<String> importIRIs = new ArrayList<String>();
+            for (int i = in.readInt(); i > 0; i--)
+                importIRIs.add(in.readUTF());
+            final int entities = in.readInt();
+            final byte[] entityTypes = new byte[entities];
+            final String[] entityIDs = new String[entities];
+            for (int i = 0; i < entities; i++) {
+                entityTypes[i] = in.readByte();
+                entityIDs[i] = in.readUTF();
+            }
+            final int[] subclassEdges = new int[in.readInt() * 2];
+            for (int i = 0; i < subclassEdges.length; i++)
+                subclassEdges[i] = in.readInt();
+
+            return new OntologySnapshot(documentFingerprint,
+                    (ontology.length() == 0) ? null : ontology,
+                    (version.length() == 0) ? null : version,
+                    importIRIs, entityTypes, entityIDs, subclassEdges);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes this snapshot to the file given.  The file is written next to
+     * its destination first and renamed when it is complete.
+     *
+     * @param file the snapshot file
+     * @throws IOException if the file could not be written
+     */
+    public void write(final File file) throws IOException {
+        file.getParentFile().mkdirs();
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(OntologySnapshot.MAGIC);
+            out.writeInt(OntologySnapshot.VERSION);
+            out.writeInt(this.fingerprint.getLocation().length());
+            out.writeChars(this.fingerprint.getLocation());
+            out.writeLong(this.fingerprint.getSize());
+            out.writeLong(this.fingerprint.getLastModified());
+            out.writeInt(this.fingerprint.getHash().length);
+            out.write(this.fingerprint.getHash());
+
+            out.writeUTF((this.ontologyIRI == null) ? "" : this.ontologyIRI);
+            out.writeUTF((this.versionIRI == null) ? "" : this.versionIRI);
+            out.writeInt(this.imports.size());
+            for (String iri : this.imports)
+                out.writeUTF(iri);
+            out.writeInt(this.ids.length);
+            for (int i = 0; i < this.ids.length; i++) {
+                out.writeByte(this.types[i]);
+                out.writeUTF(this.ids[i]);
+            }
+            out.writeInt(this.edges.length / 2);
+            for (int edge : this.edges)
+                out.writeInt(edge);
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException("Could not replace " + file);
+    }
+
+    /**
+     * Does the document still match the snapshot?
+     *
+     * @return <code>true</code> if the document has not changed since the
+     *  snapshot was taken
+     */
+    public boolean matches() {
+        return this.fingerprint.matches();
+    }
+
+    /**
+     * Retrieves the IRIs of the imported ontologies.
+     *
+     * @return the imported ontologies' IRIs
+     */
+    public List<IRI> getImports() {
+        final List<IRI> toReturn = new ArrayList<IRI>(this.imports.size());
+        for (String iri : this.imports)
+            toReturn.add(IRI.create(iri));
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the ID of the ontology.
+     *
+     * @return the ontology ID
+     */
+    public OWLOntologyID getOntologyID() {
+        if (this.ontologyIRI == null)
+            return new OWLOntologyID();
+        return new OWLOntologyID(IRI.create(this.ontologyIRI),
+                (this.versionIRI == null) ? null
+                        : IRI.create(this.versionIRI));
+    }
+
+    /**
+     * Restores the ontology in the manager given.  The restored ontology
+     * declares the entities and asserts the class hierarchy, which is all
+     * the completion and the class hierarchy view need.  All other axioms
+     * are missing.
+     *
+     * @param manager the manager to create the ontology in
+     * @return the restored ontology
+     * @throws OWLOntologyCreationException if the ontology could not be
+     *  created
+     */
+    public OWLOntology restore(final OWLOntologyManager manager)
+        throws OWLOntologyCreationException {
+        final OWLOntology toReturn =
+                manager.createOntology(this.getOntologyID());
+        final OWLDataFactory factory = manager.getOWLDataFactory();
+        final List<OWLOntologyChange> changes =
+                new ArrayList<OWLOntologyChange>();
+        for (IRI iri : this.getImports())
+            changes.add(new AddImport(toReturn,
+                    factory.getOWLImportsDeclaration(iri)));
+
+        final OWLEntity[] entities = new OWLEntity[this.ids.length];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = OntologySnapshot.entity(factory,
+                    WrappedOWLEntity.Types.values()[this.types[i]],
+                    IRI.create(this.ids[i]));
+            if (entities[i] != null)
+                changes.add(new AddAxiom(toReturn,
+                        factory.getOWLDeclarationAxiom(entities[i])));
+        }
+        for (int i = 0; i < this.edges.length; i += 2)
+            changes.add(new AddAxiom(toReturn,
+                    factory.getOWLSubClassOfAxiom(
+                            (OWLClass) entities[this.edges[i]],
+                            (OWLClass) entities[this.edges[i + 1]])));
+        manager.applyChanges(changes);
+        return toReturn;
+    }
+
+    /**
+     * Creates the entity of the type given.
+     *
+     * @param factory the factory to create the entity with
+     * @param type the type of the entity
+     * @param iri the IRI of the entity
+     * @return the entity or <code>null</code> if the type is unknown
+     */
+    private static OWLEntity entity(final OWLDataFactory factory,
+            final WrappedOWLEntity.Types type, final IRI iri) {
+        switch (type) {
+        case OWLClass:
+            return factory.getOWLClass(iri);
+        case OWLNamedIndividual:
+            return factory.getOWLNamedIndividual(iri);
+        case OWLDataProperty:
+            return factory.getOWLDataProperty(iri);
+        case OWLDataType:
+            return factory.getOWLDatatype(iri);
+        case OWLObjectProperty:
+            return factory.getOWLObjectProperty(iri);
+        case OWLAnnotationProperty:
+            return factory.getOWLAnnotationProperty(iri);
+        default:
+            return null;
+        }
+    }
+
+}
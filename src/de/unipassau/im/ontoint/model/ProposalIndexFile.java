@@ -0,0 +1,400 @@
+package de.unipassau.im.ontoint.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * A read-only, serialized form of the proposal index that is opened without
+ * parsing any ontology.  The file holds the fingerprints of the documents the
+ * index was built from, followed by a table of fixed size entity records
+ * sorted by their keys (the folded short IDs used by the
+ * {@link TemplateProposalTrie}) and a pool of UTF-16 chars the records point
+ * into:
+ * <pre>
+ * int magic, int version, int documents, int entities, int chars
+ * documents * (int length, char[] location, long size, long modified,
+ *              int length, byte[] hash)
+ * entities  * (int id offset, int id length, int key offset,
+ *              int key length, int type)
+ * chars     * char
+ * </pre>
+ * The file is mapped into memory as a whole, so opening it costs next to
+ * nothing and prefix queries are binary searches directly on the mapped
+ * records.  Entities are only materialized for the results of a query, as
+ * the same singletons the loaded ontologies will provide later on.
+ *
+ * @author Philipp Nolte
+ */
+public final class ProposalIndexFile {
+
+    /**
+     * The magic number at the start of every index file.
+     */
+    private static final int MAGIC = 0x4f4e5449;
+
+    /**
+     * The version of the file format.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The size of a single entity record in bytes.
+     */
+    private static final int RECORD = 20;
+
+    /**
+     * The mapped file.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * The fingerprints of the documents the index was built from.
+     */
+    private final List<DocumentFingerprint> documents;
+
+    /**
+     * The number of entities.
+     */
+    private final int entityCount;
+
+    /**
+     * The offset of the first entity record.
+     */
+    private final int recordBase;
+
+    /**
+     * The offset of the char pool.
+     */
+    private final int charBase;
+
+    /**
+     * The number of chars in the pool.
+     */
+    private final int charCount;
+
+    /**
+     * Creates a new index file on the mapped buffer given.
+     *
+     * @param mapped the mapped file
+     * @throws IOException if the file is not a valid index file
+     */
+    private ProposalIndexFile(final ByteBuffer mapped) throws IOException {
+        this.buffer = mapped;
+        try {
+            if ((mapped.getInt() != ProposalIndexFile.MAGIC)
+                    || (mapped.getInt() != ProposalIndexFile.VERSION))
+                throw new IOException("Not a proposal index file");
+            final int documentCount = mapped.getInt();
+            this.entityCount = mapped.getInt();
+            this.charCount = mapped.getInt();
+
+            this.documents = new ArrayList<DocumentFingerprint>(documentCount);
+            for (int i = 0; i < documentCount; i++) {
+                final char[] location = new char[mapped.getInt()];
+                mapped.asCharBuffer().get(location);
+                mapped.position(mapped.position() + location.length * 2);
+                final long size = mapped.getLong();
+                final long modified = mapped.getLong();
+                final byte[] hash = new byte[mapped.getInt()];
+                mapped.get(hash);
+                this.documents.add(new DocumentFingerprint(
+                        new String(location), size, modified, hash));
+            }
+
+            this.recordBase = mapped.position();
+            final long chars = this.recordBase
+                    + (long) this.entityCount * ProposalIndexFile.RECORD;
+            if ((this.entityCount < 0) || (this.charCount < 0)
+                    || (chars + this.charCount * 2L != mapped.limit()))
+                throw new IOException("Corrupt proposal index file");
+            this.charBase = (int) chars;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt proposal index file: " + e);
+        }
+    }
+
+    /**
+     * Maps the index file given into memory.
+     *
+     * @param file the index file
+     * @return the mapped index
+     * @throws IOException if the file could not be read or is corrupt
+     */
+    public static ProposalIndexFile open(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            final MappedByteBuffer mapped = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ProposalIndexFile(mapped);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes an index file for the entities given.  The file is written next
+     * to its destination first and renamed when it is complete.
+     *
+     * @param file the index file to write
+     * @param fingerprints the fingerprints of the documents the entities were
+     *  loaded from
+     * @param entities the entities
+     * @throws IOException if the file could not be written
+     */
+    public static void write(final File file,
+            final Collection<DocumentFingerprint> fingerprints,
+            final Collection<WrappedOWLEntity> entities) throws IOException {
+        final List<WrappedOWLEntity> sorted =
+                new ArrayList<WrappedOWLEntity>(entities);
+        Collections.sort(sorted, new Comparator<WrappedOWLEntity>() {
+            public int compare(final WrappedOWLEntity o1,
+                    final WrappedOWLEntity o2) {
+                final int c = ProposalIndexFile.keyOf(o1).compareTo(
+                        ProposalIndexFile.keyOf(o2));
+                return (c != 0) ? c : o1.getID().compareTo(o2.getID());
+            }
+        });
+
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            int chars = 0;
+            for (WrappedOWLEntity e : sorted)
+                chars += e.getID().length()
+                        + ProposalIndexFile.keyOf(e).length();
+
+            out.writeInt(ProposalIndexFile.MAGIC);
+            out.writeInt(ProposalIndexFile.VERSION);
+            out.writeInt(fingerprints.size());
+            out.writeInt(sorted.size());
+            out.writeInt(chars);
+            for (DocumentFingerprint d : fingerprints) {
+                out.writeInt(d.getLocation().length());
+                out.writeChars(d.getLocation());
+                out.writeLong(d.getSize());
+                out.writeLong(d.getLastModified());
+                out.writeInt(d.getHash().length);
+                out.write(d.getHash());
+            }
+
+            int offset = 0;
+            for (WrappedOWLEntity e : sorted) {
+                final int idLength = e.getID().length();
+                final int keyLength = ProposalIndexFile.keyOf(e).length();
+                out.writeInt(offset);
+                out.writeInt(idLength);
+                out.writeInt(offset + idLength);
+                out.writeInt(keyLength);
+                out.writeInt(e.getType().ordinal());
+                offset += idLength + keyLength;
+            }
+            for (WrappedOWLEntity e : sorted) {
+                out.writeChars(e.getID());
+                out.writeChars(ProposalIndexFile.keyOf(e));
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            throw new IOException("Could not replace " + file);
+    }
+
+    /**
+     * Retrieves the key of an entity.
+     *
+     * @param e the entity
+     * @return the key
+     */
+    private static String keyOf(final WrappedOWLEntity e) {
+        return e.getFoldedID();
+    }
+
+    /**
+     * Do all documents the index was built from still match their
+     * fingerprints?  Remote documents are checked against their copies in
+     * the cache given, and an index built from remote documents is never
+     * valid without a cache.
+     *
+     * @param cache the cache of remote documents or <code>null</code>
+     * @return <code>true</code> if the index is up to date
+     */
+    public boolean isValid(final OntologyDownloadCache cache) {
+        for (DocumentFingerprint d : this.documents)
+            if (!d.matches(cache))
+                return false;
+        return true;
+    }
+
+    /**
+     * Retrieves the fingerprints of the documents the index was built from.
+     *
+     * @return the fingerprints
+     */
+    public List<DocumentFingerprint> getDocuments() {
+        return Collections.unmodifiableList(this.documents);
+    }
+
+    /**
+     * Retrieves the number of entities in the index.
+     *
+     * @return the number of entities
+     */
+    public int size() {
+        return this.entityCount;
+    }
+
+    /**
+     * Counts the entities whose keys start with the prefix given.
+     *
+     * @param prefix The key prefix to use.
+     * @return the number of entities with the given prefix
+     */
+    public int count(final String prefix) {
+        final String key = CaseFolding.UNICODE.fold(prefix);
+        return this.upperBound(key) - this.lowerBound(key);
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> entities whose keys start with the
+     * prefix given, in lexicographic order of their keys.
+     *
+     * @param prefix The key prefix to use.
+     * @param limit the maximum number of entities to retrieve
+     * @return the entities with the given prefix
+     */
+    public List<WrappedOWLEntity> find(final String prefix, final int limit) {
+        final String key = CaseFolding.UNICODE.fold(prefix);
+        final int from = this.lowerBound(key);
+        final int to = Math.min(this.upperBound(key),
+                from + Math.max(limit, 0));
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>(to - from);
+        for (int i = from; i < to; i++)
+            toReturn.add(this.entity(i));
+        return toReturn;
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> entities of the types given whose
+     * keys start with the prefix given, in lexicographic order of their keys.
+     * Records of other types are skipped without materializing them.
+     *
+     * @param prefix The key prefix to use.
+     * @param limit the maximum number of entities to retrieve
+     * @param types the types of the entities to retrieve
+     * @return the entities of the given types with the given prefix
+     */
+    public List<WrappedOWLEntity> find(final String prefix, final int limit,
+            final EnumSet<WrappedOWLEntity.Types> types) {
+        final String key = CaseFolding.UNICODE.fold(prefix);
+        final int to = this.upperBound(key);
+        final WrappedOWLEntity.Types[] all = WrappedOWLEntity.Types.values();
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>();
+        for (int i = this.lowerBound(key);
+                (i < to) && (toReturn.size() < limit); i++)
+            if (types.contains(all[this.buffer.getInt(this.recordBase
+                    + i * ProposalIndexFile.RECORD + 16)]))
+                toReturn.add(this.entity(i));
+        return toReturn;
+    }
+
+    /**
+     * Materializes the entity of the record given.
+     *
+     * @param i the record index
+     * @return the entity
+     */
+    private WrappedOWLEntity entity(final int i) {
+        final int record = this.recordBase + i * ProposalIndexFile.RECORD;
+        final char[] id = new char[this.buffer.getInt(record + 4)];
+        final int offset = this.charBase + this.buffer.getInt(record) * 2;
+        for (int j = 0; j < id.length; j++)
+            id[j] = this.buffer.getChar(offset + j * 2);
+        return WrappedOWLEntity.getEntityFor(new String(id),
+                WrappedOWLEntity.Types.values()[
+                        this.buffer.getInt(record + 16)]);
+    }
+
+    /**
+     * Finds the first record whose key is not less than the prefix.
+     *
+     * @param prefix the prefix
+     * @return the record index
+     */
+    private int lowerBound(final String prefix) {
+        int low = 0;
+        int high = this.entityCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.compare(mid, prefix, false) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Finds the first record whose key neither starts with the prefix nor is
+     * less than it.
+     *
+     * @param prefix the prefix
+     * @return the record index
+     */
+    private int upperBound(final String prefix) {
+        int low = 0;
+        int high = this.entityCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.compare(mid, prefix, true) <= 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Compares the key of a record with the prefix given.
+     *
+     * @param i the record index
+     * @param prefix the prefix
+     * @param truncate <code>true</code> to compare only the first chars of the
+     *  key, as many as the prefix has
+     * @return a negative number, zero or a positive number if the key is
+     *  less than, equal to or greater than the prefix
+     */
+    private int compare(final int i, final String prefix,
+            final boolean truncate) {
+        final int record = this.recordBase + i * ProposalIndexFile.RECORD;
+        final int offset = this.charBase + this.buffer.getInt(record + 8) * 2;
+        int length = this.buffer.getInt(record + 12);
+        if (truncate)
+            length = Math.min(length, prefix.length());
+        final int n = Math.min(length, prefix.length());
+        for (int j = 0; j < n; j++) {
+            final char c = this.buffer.getChar(offset + j * 2);
+            if (c != prefix.charAt(j))
+                return c - prefix.charAt(j);
+        }
+        return length - prefix.length();
+    }
+
+}
@@ -0,0 +1,234 @@
+package de.unipassau.im.ontoint.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A secondary index answering substring queries over entity short IDs.  For
+ * every position of a (folded) ID, the trigram starting there is mapped to
+ * a posting list of the entities containing it.  Trigrams near the end of an
+ * ID are padded with <code>'\0'</code>, so every substring of up to three
+ * chars is a prefix of the trigram starting at its position.
+ * <p>
+ * A query of at least three chars only has to verify the entities of its
+ * rarest trigram, a shorter query unions the posting lists of all trigrams
+ * starting with it.  Either way, the cost depends on the posting lists
+ * touched, not on the number of entities or ontologies loaded.  Posting lists
+ * are compact arrays which are only rebuilt in bulk.
+ * <p>
+ * The map of posting lists is copied on write and published as a whole when
+ * a bulk modification is done, so readers never block and never see a
+ * half-applied modification.
+ *
+ * @author Philipp Nolte
+ */
+final class SubstringIndex {
+
+    /**
+     * The length of the indexed n-grams.
+     */
+    private static final int N = 3;
+
+    /**
+     * The char used for padding trigrams at the end of an ID.
+     */
+    private static final char PAD = '\0';
+
+    /**
+     * Shared empty posting list.
+     */
+    private static final WrappedOWLEntity[] EMPTY = new WrappedOWLEntity[0];
+
+    /**
+     * The published posting lists ordered by their trigram.  Neither the map
+     * nor the posting lists are changed once published.
+     */
+    private volatile SortedMap<String, WrappedOWLEntity[]> postings =
+            new TreeMap<String, WrappedOWLEntity[]>();
+
+    /**
+     * Adds all entities given to the index.  Every affected posting list is
+     * rebuilt once, no matter how many of the entities it gains.
+     *
+     * @param c the entities to add
+     */
+    synchronized void addAll(final Collection<? extends WrappedOWLEntity> c) {
+        final SortedMap<String, WrappedOWLEntity[]> newPostings =
+                new TreeMap<String, WrappedOWLEntity[]>(this.postings);
+        for (Map.Entry<String, List<WrappedOWLEntity>> entry
+                : SubstringIndex.group(c).entrySet()) {
+            final WrappedOWLEntity[] old =
+                    SubstringIndex.get(newPostings, entry.getKey());
+            final Set<WrappedOWLEntity> present =
+                    new HashSet<WrappedOWLEntity>(old.length * 4 / 3 + 1);
+            for (WrappedOWLEntity e : old)
+                present.add(e);
+
+            final List<WrappedOWLEntity> list =
+                    new ArrayList<WrappedOWLEntity>(old.length
+                            + entry.getValue().size());
+            for (WrappedOWLEntity e : old)
+                list.add(e);
+            for (WrappedOWLEntity e : entry.getValue())
+                if (present.add(e))
+                    list.add(e);
+            newPostings.put(entry.getKey(),
+                    list.toArray(new WrappedOWLEntity[list.size()]));
+        }
+        this.postings = newPostings;
+    }
+
+    /**
+     * Removes all entities given from the index.  Every affected posting list
+     * is rebuilt once, no matter how many of the entities it loses.
+     *
+     * @param c the entities to remove
+     */
+    synchronized void removeAll(
+            final Collection<? extends WrappedOWLEntity> c) {
+        final SortedMap<String, WrappedOWLEntity[]> newPostings =
+                new TreeMap<String, WrappedOWLEntity[]>(this.postings);
+        for (Map.Entry<String, List<WrappedOWLEntity>> entry
+                : SubstringIndex.group(c).entrySet()) {
+            final WrappedOWLEntity[] old =
+                    SubstringIndex.get(newPostings, entry.getKey());
+            final Set<WrappedOWLEntity> removed =
+                    new HashSet<WrappedOWLEntity>(entry.getValue());
+            final List<WrappedOWLEntity> list =
+                    new ArrayList<WrappedOWLEntity>(old.length);
+            for (WrappedOWLEntity e : old)
+                if (!removed.contains(e))
+                    list.add(e);
+            if (list.isEmpty())
+                newPostings.remove(entry.getKey());
+            else if (list.size() < old.length)
+                newPostings.put(entry.getKey(),
+                        list.toArray(new WrappedOWLEntity[list.size()]));
+        }
+        this.postings = newPostings;
+    }
+
+    /**
+     * Removes all entities from the index.
+     */
+    synchronized void clear() {
+        this.postings = new TreeMap<String, WrappedOWLEntity[]>();
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> entities whose short IDs contain
+     * the fragment given, ignoring case.
+     *
+     * @param fragment the fragment to search for
+     * @param limit the maximum number of entities to retrieve
+     * @return the matching entities
+     */
+    Set<WrappedOWLEntity> find(final String fragment, final int limit) {
+        final Set<WrappedOWLEntity> toReturn =
+                new LinkedHashSet<WrappedOWLEntity>();
+        if ((limit < 1) || (fragment.length() == 0))
+            return toReturn;
+        final String query = CaseFolding.UNICODE.fold(fragment);
+        final SortedMap<String, WrappedOWLEntity[]> snapshot = this.postings;
+
+        // Short fragments are prefixes of the trigrams at their positions
+        if (query.length() < SubstringIndex.N) {
+            for (WrappedOWLEntity[] list : snapshot.subMap(
+                    query, query + Character.MAX_VALUE).values())
+                for (WrappedOWLEntity e : list)
+                    if (toReturn.add(e) && (toReturn.size() >= limit))
+                        return toReturn;
+            return toReturn;
+        }
+
+        // Longer fragments only need to verify their rarest trigram's list
+        WrappedOWLEntity[] rarest = null;
+        for (int i = 0; i + SubstringIndex.N <= query.length(); i++) {
+            final WrappedOWLEntity[] list = SubstringIndex.get(snapshot,
+                    query.substring(i, i + SubstringIndex.N));
+            if ((rarest == null) || (list.length < rarest.length))
+                rarest = list;
+            if (rarest.length == 0)
+                return toReturn;
+        }
+        for (WrappedOWLEntity e : rarest)
+            if (SubstringIndex.keyOf(e).contains(query)
+                    && toReturn.add(e) && (toReturn.size() >= limit))
+                return toReturn;
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the posting list of a trigram.
+     *
+     * @param map the posting lists to search
+     * @param gram the trigram
+     * @return the posting list, possibly empty
+     */
+    private static WrappedOWLEntity[] get(
+            final Map<String, WrappedOWLEntity[]> map, final String gram) {
+        final WrappedOWLEntity[] toReturn = map.get(gram);
+        return (toReturn == null) ? SubstringIndex.EMPTY : toReturn;
+    }
+
+    /**
+     * Groups the entities given by the trigrams they contain.
+     *
+     * @param c the entities to group
+     * @return the entities per trigram
+     */
+    private static Map<String, List<WrappedOWLEntity>> group(
+            final Collection<? extends WrappedOWLEntity> c) {
+        final Map<String, List<WrappedOWLEntity>> toReturn =
+                new HashMap<String, List<WrappedOWLEntity>>();
+        for (WrappedOWLEntity e : c) {
+            for (String gram : SubstringIndex.gramsOf(
+                    SubstringIndex.keyOf(e))) {
+                List<WrappedOWLEntity> list = toReturn.get(gram);
+                if (list == null) {
+                    list = new ArrayList<WrappedOWLEntity>();
+                    toReturn.put(gram, list);
+                }
+                list.add(e);
+            }
+        }
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the indexed key of an entity.
+     *
+     * @param e the entity
+     * @return the key
+     */
+    private static String keyOf(final WrappedOWLEntity e) {
+        return e.getFoldedID();
+    }
+
+    /**
+     * Computes the distinct, padded trigrams of the key given.
+     *
+     * @param key the key
+     * @return the trigrams
+     */
+    private static Set<String> gramsOf(final String key) {
+        final Set<String> toReturn = new HashSet<String>();
+        final char[] gram = new char[SubstringIndex.N];
+        for (int i = 0; i < key.length(); i++) {
+            for (int j = 0; j < SubstringIndex.N; j++)
+                gram[j] = (i + j < key.length())
+                        ? key.charAt(i + j) : SubstringIndex.PAD;
+            toReturn.add(new String(gram));
+        }
+        return toReturn;
+    }
+
+}
@@ -1,103 +1,1219 @@
 package de.unipassau.im.ontoint.model;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumSet;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * A simple but powerful StringTrie implementation.  {@link WrappedOWLEntity}s
- * are stored in the nodes. The edges are labeled by a single char of the
- * entity's String ID. Following the chars of an ID down from the root will
- * result in the node containing the entity with that specific ID.
+ * A path-compressed (radix) StringTrie implementation.
+ * {@link WrappedOWLEntity}s are stored in the nodes. The edges are labeled by
+ * the longest run of chars of the entity's String IDs that is shared by all
+ * entities below the edge. Following the chars of an ID down from the root
+ * will result in the node containing the entity with that specific ID.
+ * <p>
+ * Keys are the short IDs of the entities, folded by a {@link CaseFolding}.
+ * Queries are folded one code point at a time while walking down the edges,
+ * so lookups never allocate a folded copy of the query.
+ * <p>
+ * Every node keeps the first chars of its outgoing edges in a sorted primitive
+ * <code>char[]</code> next to an array of the child nodes, so looking up an
+ * edge is a binary search without boxing and without any locking. Every node
+ * also counts the entities stored in its subtree, which makes
+ * {@link TemplateProposalTrie#size()} and
+ * {@link TemplateProposalTrie#count(String)} constant-time operations after
+ * the prefix has been walked down.
+ * <p>
+ * Every node also knows the {@link WrappedOWLEntity.Types} of the entities in
+ * its subtree, so queries restricted to some types skip whole subtrees
+ * without such entities.
+ * <p>
+ * Each entity carries a static, non-negative score (eg. its usage frequency)
+ * and every node knows the maximum score within its subtree.  This allows
+ * {@link TemplateProposalTrie#topK(String, int)} to search best-first and
+ * skip whole subtrees that can not contribute to the best results.
+ * <p>
+ * Nodes are never changed once they have been published.  Every modification
+ * copies the nodes on the path it touches (reusing nodes it already copied
+ * itself) and swaps in the new root through an {@link AtomicReference} when
+ * it is done.  Readers grab the root once and work on that immutable
+ * snapshot, so they never block and never see a half-applied modification,
+ * even if it adds or removes a whole ontology at once.  Writers are
+ * serialized.
+ * <p>
+ * Entities may be owned by the ontologies they were loaded from, identified
+ * by small integer slots.  An entity stays in the Trie as long as any
+ * ontology owns it, so vocabulary shared between ontologies survives the
+ * removal of one of them, and
+ * {@link TemplateProposalTrie#detach(int)} drops a whole ontology in a
+ * single walk over the entries.  Entities added without an owner stay until
+ * they are removed explicitly.
  *
  * @author Philipp Nolte
  */
 public final class TemplateProposalTrie implements Set<WrappedOWLEntity> {
 
     /**
-     * This node's value.
+     * Shared empty char array.
      */
-    private Set<WrappedOWLEntity> values;
+    private static final char[] NO_CHARS = new char[0];
 
     /**
-     * A dictionary table containing references to the child nodes according to
-     * the values of the edges connecting them.
+     * Shared empty node array.
      */
-    private Map<Character, TemplateProposalTrie> children =
-            new Hashtable<Character, TemplateProposalTrie>();
+    private static final Node[] NO_NODES = new Node[0];
 
     /**
-     * Are there any values stored in this node?
+     * Shared empty slot array.
+     */
+    private static final int[] NO_SLOTS = new int[0];
+
+    /**
+     * The owner slot of entities added without an owning ontology.
+     */
+    public static final int NO_OWNER = -1;
+
+    /**
+     * The minimum number of entities for which bulk loading is parallelized.
+     */
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    /**
+     * The type mask matching all types.
+     */
+    private static final int ALL_TYPES = ~0;
+
+    /**
+     * The size up to which ranges of a bulk load are sorted as a whole
+     * instead of being partitioned char by char.
+     */
+    private static final int SMALL_RANGE = 32;
+
+    /**
+     * A single node of the radix trie.
+     */
+    private static final class Node {
+
+        /**
+         * The label of the edge leading into this node.
+         */
+        private char[] label;
+
+        /**
+         * The sorted first chars of the labels of the child nodes.
+         */
+        private char[] edges = TemplateProposalTrie.NO_CHARS;
+
+        /**
+         * The child nodes in the same order as {@link Node#edges}.
+         */
+        private Node[] children = TemplateProposalTrie.NO_NODES;
+
+        /**
+         * This node's values or <code>null</code> if there are none.
+         */
+        private WrappedOWLEntity[] values;
+
+        /**
+         * The scores of this node's values in the same order as
+         * {@link Node#values} or <code>null</code> if there are no values.
+         */
+        private int[] scores;
+
+        /**
+         * The sorted slots of the ontologies owning this node's values in the
+         * same order as {@link Node#values} or <code>null</code> if there are
+         * no values.  The slots of a value are <code>null</code> if it has
+         * been added without an owner.  The slot arrays themselves are never
+         * changed, only replaced.
+         */
+        private int[][] owners;
+
+        /**
+         * The number of values stored in this node's subtree.
+         */
+        private int count;
+
+        /**
+         * The maximum score of all values stored in this node's subtree.
+         */
+        private int maxScore;
+
+        /**
+         * The types of all values stored in this node's subtree, one bit per
+         * {@link WrappedOWLEntity.Types} ordinal.
+         */
+        private int typeMask;
+
+        /**
+         * The modification that created this node.  Only this modification
+         * may change the node in place, and only until it is published.
+         */
+        private final Edit owner;
+
+        /**
+         * Creates a new node with the edge label given.
+         *
+         * @param edgeLabel the label of the edge leading into this node
+         * @param edit the modification creating the node
+         */
+        private Node(final char[] edgeLabel, final Edit edit) {
+            this.label = edgeLabel;
+            this.owner = edit;
+        }
+
+        /**
+         * Creates a copy of the node given that may be changed by the
+         * modification given.  Arrays that are changed in place are cloned,
+         * all others are replaced as a whole on change and can be shared.
+         *
+         * @param other the node to copy
+         * @param edit the modification copying the node
+         */
+        private Node(final Node other, final Edit edit) {
+            this.label = other.label;
+            this.edges = other.edges;
+            this.children = other.children.clone();
+            this.values = other.values;
+            this.scores = (other.scores == null) ? null : other.scores.clone();
+            this.owners = (other.owners == null) ? null : other.owners.clone();
+            this.count = other.count;
+            this.maxScore = other.maxScore;
+            this.typeMask = other.typeMask;
+            this.owner = edit;
+        }
+
+        /**
+         * Are there any values stored in this node?
+         *
+         * @return <code>true</code> if there are values
+         */
+        private boolean flagged() {
+            return this.values != null;
+        }
+
+        /**
+         * Retrieves the child whose edge starts with the char given.
+         *
+         * @param c the first char of the edge
+         * @return the child or <code>null</code> if there is no such edge
+         */
+        private Node child(final char c) {
+            final int i = Arrays.binarySearch(this.edges, c);
+            return (i < 0) ? null : this.children[i];
+        }
+
+        /**
+         * Inserts or replaces the child starting with its label's first char.
+         *
+         * @param child the child to put
+         */
+        private void putChild(final Node child) {
+            final char c = child.label[0];
+            int i = Arrays.binarySearch(this.edges, c);
+            if (i >= 0) {
+                this.children[i] = child;
+                return;
+            }
+            i = -i - 1;
+            final int n = this.edges.length;
+            final char[] newEdges = new char[n + 1];
+            final Node[] newChildren = new Node[n + 1];
+            System.arraycopy(this.edges, 0, newEdges, 0, i);
+            System.arraycopy(this.children, 0, newChildren, 0, i);
+            newEdges[i] = c;
+            newChildren[i] = child;
+            System.arraycopy(this.edges, i, newEdges, i + 1, n - i);
+            System.arraycopy(this.children, i, newChildren, i + 1, n - i);
+            this.edges = newEdges;
+            this.children = newChildren;
+        }
+
+        /**
+         * Removes the child whose edge starts with the char given.
+         *
+         * @param c the first char of the edge
+         */
+        private void removeChild(final char c) {
+            final int i = Arrays.binarySearch(this.edges, c);
+            if (i < 0)
+                return;
+            final int n = this.edges.length;
+            if (n == 1) {
+                this.edges = TemplateProposalTrie.NO_CHARS;
+                this.children = TemplateProposalTrie.NO_NODES;
+                return;
+            }
+            final char[] newEdges = new char[n - 1];
+            final Node[] newChildren = new Node[n - 1];
+            System.arraycopy(this.edges, 0, newEdges, 0, i);
+            System.arraycopy(this.children, 0, newChildren, 0, i);
+            System.arraycopy(this.edges, i + 1, newEdges, i, n - i - 1);
+            System.arraycopy(this.children, i + 1, newChildren, i, n - i - 1);
+            this.edges = newEdges;
+            this.children = newChildren;
+        }
+
+        /**
+         * Adds a value to this node.
+         *
+         * @param e the value to add
+         * @param slots the slots of the value's owners or <code>null</code>
+         * @return <code>true</code> if the value was not yet present
+         */
+        private boolean addValue(final WrappedOWLEntity e, final int[] slots) {
+            this.typeMask |= TemplateProposalTrie.maskOf(e);
+            if (this.values == null) {
+                this.values = new WrappedOWLEntity[] {e};
+                this.scores = new int[1];
+                this.owners = new int[][] {slots};
+                return true;
+            }
+            if (this.indexOf(e) >= 0)
+                return false;
+            final int n = this.values.length;
+            this.values = Arrays.copyOf(this.values, n + 1);
+            this.values[n] = e;
+            this.scores = Arrays.copyOf(this.scores, n + 1);
+            this.owners = Arrays.copyOf(this.owners, n + 1);
+            this.owners[n] = slots;
+            return true;
+        }
+
+        /**
+         * Removes a value from this node.
+         *
+         * @param o the value to remove
+         * @return <code>true</code> if the value was present
+         */
+        private boolean removeValue(final Object o) {
+            final int i = this.indexOf(o);
+            if (i < 0)
+                return false;
+            this.removeValueAt(i);
+            return true;
+        }
+
+        /**
+         * Removes the value at the index given from this node.
+         *
+         * @param i the index of the value
+         */
+        private void removeValueAt(final int i) {
+            final int n = this.values.length;
+            if (n == 1) {
+                this.values = null;
+                this.scores = null;
+                this.owners = null;
+                return;
+            }
+            final WrappedOWLEntity[] newValues = new WrappedOWLEntity[n - 1];
+            System.arraycopy(this.values, 0, newValues, 0, i);
+            System.arraycopy(this.values, i + 1, newValues, i, n - i - 1);
+            this.values = newValues;
+            final int[] newScores = new int[n - 1];
+            System.arraycopy(this.scores, 0, newScores, 0, i);
+            System.arraycopy(this.scores, i + 1, newScores, i, n - i - 1);
+            this.scores = newScores;
+            final int[][] newOwners = new int[n - 1][];
+            System.arraycopy(this.owners, 0, newOwners, 0, i);
+            System.arraycopy(this.owners, i + 1, newOwners, i, n - i - 1);
+            this.owners = newOwners;
+        }
+
+        /**
+         * Recomputes the maximum score and the type mask of this subtree from
+         * the node's own values and the summaries of its children.
+         */
+        private void updateSummary() {
+            int max = 0;
+            int mask = 0;
+            if (this.values != null) {
+                for (int i = 0; i < this.values.length; i++) {
+                    max = Math.max(max, this.scores[i]);
+                    mask |= TemplateProposalTrie.maskOf(this.values[i]);
+                }
+            }
+            for (Node child : this.children) {
+                max = Math.max(max, child.maxScore);
+                mask |= child.typeMask;
+            }
+            this.maxScore = max;
+            this.typeMask = mask;
+        }
+
+        /**
+         * Retrieves the index of a value within this node.
+         *
+         * @param o the value to look for
+         * @return the index or <code>-1</code> if the value is not present
+         */
+        private int indexOf(final Object o) {
+            if (this.values == null)
+                return -1;
+            for (int i = 0; i < this.values.length; i++)
+                if (this.values[i].equals(o))
+                    return i;
+            return -1;
+        }
+
+        /**
+         * Adds all values of this subtree to the collection given.
+         *
+         * @param c the collection to add the values to
+         */
+        private void collect(final Collection<WrappedOWLEntity> c) {
+            if (this.values != null)
+                for (WrappedOWLEntity e : this.values)
+                    c.add(e);
+            for (Node child : this.children)
+                child.collect(c);
+        }
+
+        /**
+         * Adds all values of this subtree having one of the types given to
+         * the collection given.  Subtrees without any of the types are
+         * skipped.
+         *
+         * @param c the collection to add the values to
+         * @param mask the types to collect
+         */
+        private void collect(final Collection<WrappedOWLEntity> c,
+                final int mask) {
+            if ((this.typeMask & mask) == 0)
+                return;
+            if (this.values != null)
+                for (WrappedOWLEntity e : this.values)
+                    if ((TemplateProposalTrie.maskOf(e) & mask) != 0)
+                        c.add(e);
+            for (Node child : this.children)
+                child.collect(c, mask);
+        }
+
+    }
+
+    /**
+     * A single modification of the Trie.  Nodes created by the modification
+     * belong to it and are changed in place, all other nodes are copied
+     * before they are changed.
+     */
+    private static final class Edit {
+
+        /**
+         * Did the last step of the modification change anything?
+         */
+        private boolean changed;
+
+        /**
+         * Did the last step of the modification add a value that was not yet
+         * present?
+         */
+        private boolean added;
+
+        /**
+         * Retrieves a version of the node given that may be changed by this
+         * modification.
+         *
+         * @param node the node to change
+         * @return the node itself if it belongs to this modification, else a
+         *  copy of it
+         */
+        private Node editable(final Node node) {
+            return (node.owner == this) ? node : new Node(node, this);
+        }
+
+    }
+
+    /**
+     * The published root node.  Its edge label is always empty.
+     */
+    private final AtomicReference<Node> root;
+
+    /**
+     * Is this Trie a read-only snapshot?
+     */
+    private final boolean readOnly;
+
+    /**
+     * The folding applied to the keys and to all queries.
+     */
+    private final CaseFolding folding;
+
+    /**
+     * Creates a new, empty Trie folding keys and queries by
+     * {@link CaseFolding#UNICODE}.
+     */
+    public TemplateProposalTrie() {
+        this(CaseFolding.UNICODE);
+    }
+
+    /**
+     * Creates a new, empty Trie folding keys and queries as given.
      *
-     * @return <code>true</code> if there are values
+     * @param keyFolding the folding to use
      */
-    private boolean flagged() {
-        return (this.values != null) && (this.values.size() > 0);
+    public TemplateProposalTrie(final CaseFolding keyFolding) {
+        this(new Node(TemplateProposalTrie.NO_CHARS, null), false,
+                keyFolding);
+    }
+
+    /**
+     * Creates a new Trie with the root given.
+     *
+     * @param rootNode the root node
+     * @param snapshot <code>true</code> if the Trie is a read-only snapshot
+     * @param keyFolding the folding to use
+     */
+    private TemplateProposalTrie(final Node rootNode, final boolean snapshot,
+            final CaseFolding keyFolding) {
+        this.root = new AtomicReference<Node>(rootNode);
+        this.readOnly = snapshot;
+        this.folding = keyFolding;
+    }
+
+    /**
+     * Retrieves a read-only snapshot of this Trie's current state.  The
+     * snapshot is not affected by any later modification of this Trie.
+     * Taking a snapshot costs constant time.
+     *
+     * @return the snapshot
+     */
+    public TemplateProposalTrie snapshot() {
+        return new TemplateProposalTrie(this.root.get(), true, this.folding);
+    }
+
+    /**
+     * Makes sure this Trie may be modified.
+     *
+     * @throws UnsupportedOperationException if this Trie is a snapshot
+     */
+    private void checkWritable() {
+        if (this.readOnly)
+            throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Retrieves the key under which the given entity is stored.  Entities
+     * carry their keys folded by {@link CaseFolding#UNICODE}, so only Tries
+     * using another folding allocate a key here.
+     *
+     * @param e the entity
+     * @return the entity's key, which must not be changed
+     */
+    private char[] keyOf(final WrappedOWLEntity e) {
+        if (this.folding == CaseFolding.UNICODE)
+            return e.getKey();
+        return this.folding.fold(e.getShortID()).toCharArray();
+    }
+
+    /**
+     * Retrieves the type mask bit of the entity given.
+     *
+     * @param e the entity
+     * @return the bit of the entity's type
+     */
+    private static int maskOf(final WrappedOWLEntity e) {
+        return 1 << e.getType().ordinal();
+    }
+
+    /**
+     * Retrieves the type mask of the types given.
+     *
+     * @param types the types
+     * @return the mask with the bits of all types set
+     */
+    private static int maskOf(final Set<WrappedOWLEntity.Types> types) {
+        int toReturn = 0;
+        for (WrappedOWLEntity.Types type : types)
+            toReturn |= 1 << type.ordinal();
+        return toReturn;
+    }
+
+    /**
+     * Counts the chars the label given shares with the key given starting at
+     * the key's offset.
+     *
+     * @param label the edge label
+     * @param key the key
+     * @param offset the offset within the key
+     * @return the length of the common prefix
+     */
+    private static int common(final char[] label, final char[] key,
+            final int offset) {
+        final int max = Math.min(label.length, key.length - offset);
+        int i = 0;
+        while ((i < max) && (label[i] == key[offset + i]))
+            i++;
+        return i;
+    }
+
+    /**
+     * Walks down the edges along the key given.
+     *
+     * @param key the key to look for
+     * @return the node storing the values with exactly that key or
+     *  <code>null</code> if there is no such node
+     */
+    private Node find(final char[] key) {
+        Node node = this.root.get();
+        int i = 0;
+        while (i < key.length) {
+            node = node.child(key[i]);
+            if (node == null)
+                return null;
+            final int c = TemplateProposalTrie.common(node.label, key, i);
+            if (c < node.label.length)
+                return null;
+            i += c;
+        }
+        return node;
+    }
+
+    /**
+     * Walks down the edges along the prefix given, folding it one code point
+     * at a time on the way, so no folded copy of the prefix is needed.  The
+     * prefix may end in the middle of an edge label.
+     *
+     * @param prefix the unfolded prefix to look for
+     * @return the topmost node whose key starts with the folded prefix or
+     *  <code>null</code> if no key has that prefix
+     */
+    private Node findPrefix(final CharSequence prefix) {
+        Node node = this.root.get();
+        int consumed = 0;
+        int i = 0;
+        char low = 0;
+        while ((low != 0) || (i < prefix.length())) {
+
+            // Fold the next code point, splitting supplementary ones.
+            final char c;
+            if (low != 0) {
+                c = low;
+                low = 0;
+            } else {
+                final int codePoint = Character.codePointAt(prefix, i);
+                i += Character.charCount(codePoint);
+                final int folded = this.folding.fold(codePoint);
+                if (folded >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    c = CaseFolding.highSurrogate(folded);
+                    low = CaseFolding.lowSurrogate(folded);
+                } else {
+                    c = (char) folded;
+                }
+            }
+
+            if (consumed < node.label.length) {
+                if (node.label[consumed] != c)
+                    return null;
+                consumed++;
+            } else {
+                node = node.child(c);
+                if (node == null)
+                    return null;
+                consumed = 1;
+            }
+        }
+        return node;
     }
 
     /**
      * {@inheritDoc}
      */
-    public boolean add(final WrappedOWLEntity e) {
-        final String eID = e.getShortID().toLowerCase();
+    public synchronized boolean add(final WrappedOWLEntity e) {
 
         /*
          * This Trie implementation can not allow any null values. The
-         * array that is going to be added can have a length of zero and will
-         * only have to set the flag accordingly. Return false if the zero
-         * length element was already added.
+         * key that is going to be added can have a length of zero and will
+         * only have to set the root's values accordingly.
          */
-        if (eID == null)
+        if (e == null)
             throw new NullPointerException();
+        this.checkWritable();
+        return this.add(e, TemplateProposalTrie.NO_OWNER);
+    }
 
-        /*
-         * Walk through the array to add and make sure an edge for every array
-         * element is present. If the last child node already had the end flag
-         * set to true, then the value was already present: return false.
+    /**
+     * Adds an entity owned by the ontology in the slot given.  If the entity
+     * is already present, the ontology is added to its owners.
+     *
+     * @param e the entity to add
+     * @param owner the slot of the owning ontology or
+     *  {@link TemplateProposalTrie#NO_OWNER} to keep the entity until it is
+     *  removed explicitly
+     * @return <code>true</code> if the entity was not yet present
+     */
+    public synchronized boolean add(final WrappedOWLEntity e,
+            final int owner) {
+        if (e == null)
+            throw new NullPointerException();
+        this.checkWritable();
+        final Edit edit = new Edit();
+        final Node newRoot = TemplateProposalTrie.insert(this.root.get(),
+                this.keyOf(e), 0, e, owner, edit);
+        this.root.set(newRoot);
+        return edit.added;
+    }
+
+    /**
+     * Adds entities under arbitrary keys instead of their own IDs and
+     * publishes them all at once.  Secondary indexes use this to store an
+     * entity under several keys, in which case the Trie no longer behaves
+     * like a <code>Set</code> of entities and should only be queried by
+     * prefix.
+     *
+     * @param keys the keys to store the entities under
+     * @param entities the entities to add, in the same order as the keys
+     * @return <code>true</code> if any entity was not yet stored under its key
+     */
+    synchronized boolean addAll(final List<String> keys,
+            final List<? extends WrappedOWLEntity> entities) {
+        this.checkWritable();
+        final Edit edit = new Edit();
+        Node newRoot = this.root.get();
+        boolean toReturn = false;
+        for (int i = 0; i < keys.size(); i++) {
+            newRoot = TemplateProposalTrie.insert(newRoot,
+                    keys.get(i).toCharArray(), 0, entities.get(i),
+                    TemplateProposalTrie.NO_OWNER, edit);
+            toReturn = edit.added || toReturn;
+        }
+        this.root.set(newRoot);
+        return toReturn;
+    }
+
+    /**
+     * Walks through the key and makes sure there is an edge for every part
+     * of it, splitting edge labels wherever the key leaves them.  The counts
+     * of all nodes on the way are updated when the value was added.  If the
+     * value is already present, the owner is added to its owners instead.
+     * Nodes not belonging to the modification are copied before they are
+     * changed.
+     *
+     * @param node the node to insert below
+     * @param key the key of the value
+     * @param i the offset within the key already consumed by the path
+     * @param e the value to insert
+     * @param owner the slot of the owning ontology or
+     *  {@link TemplateProposalTrie#NO_OWNER}
+     * @param edit the modification, which will know if the value was added
+     * @return the node replacing the node given
+     */
+    private static Node insert(final Node node, final char[] key,
+            final int i, final WrappedOWLEntity e, final int owner,
+            final Edit edit) {
+        edit.changed = false;
+        edit.added = false;
+        if (i == key.length) {
+            final int j = node.indexOf(e);
+            if (j >= 0) {
+                final int[] slots = node.owners[j];
+                final int[] newSlots =
+                        TemplateProposalTrie.withOwner(slots, owner);
+                if (newSlots == slots)
+                    return node;
+                final Node toReturn = edit.editable(node);
+                toReturn.owners[j] = newSlots;
+                edit.changed = true;
+                return toReturn;
+            }
+            final Node toReturn = edit.editable(node);
+            toReturn.addValue(e, TemplateProposalTrie.withOwner(
+                    TemplateProposalTrie.NO_SLOTS, owner));
+            toReturn.count++;
+            edit.changed = true;
+            edit.added = true;
+            return toReturn;
+        }
+
+        Node child = node.child(key[i]);
+        if (child == null) {
+            child = new Node(Arrays.copyOfRange(key, i, key.length), edit);
+            child.addValue(e, TemplateProposalTrie.withOwner(
+                    TemplateProposalTrie.NO_SLOTS, owner));
+            child.count = 1;
+            edit.changed = true;
+            edit.added = true;
+        } else {
+            final int c = TemplateProposalTrie.common(child.label, key, i);
+            if (c < child.label.length) {
+                final Node middle = new Node(
+                        Arrays.copyOfRange(child.label, 0, c), edit);
+                final Node rest = edit.editable(child);
+                rest.label = Arrays.copyOfRange(
+                        child.label, c, child.label.length);
+                middle.count = rest.count;
+                middle.maxScore = rest.maxScore;
+                middle.typeMask = rest.typeMask;
+                middle.putChild(rest);
+                child = middle;
+            }
+            child = TemplateProposalTrie.insert(child, key, i + c, e, owner,
+                    edit);
+            if (!edit.changed)
+                return node;
+        }
+
+        final Node toReturn = edit.editable(node);
+        toReturn.putChild(child);
+        toReturn.typeMask |= child.typeMask;
+        if (edit.added)
+            toReturn.count++;
+        return toReturn;
+    }
+
+    /**
+     * Adds an owner to the sorted slots given.  Adding
+     * {@link TemplateProposalTrie#NO_OWNER} releases the value from all its
+     * owners, so it stays until it is removed explicitly.
+     *
+     * @param slots the slots or <code>null</code> if the value has no owners
+     * @param owner the slot to add
+     * @return the new slots or the slots given if nothing changed
+     */
+    private static int[] withOwner(final int[] slots, final int owner) {
+        if ((slots == null) || (owner < 0))
+            return null;
+        int i = Arrays.binarySearch(slots, owner);
+        if (i >= 0)
+            return slots;
+        i = -i - 1;
+        final int[] toReturn = new int[slots.length + 1];
+        System.arraycopy(slots, 0, toReturn, 0, i);
+        toReturn[i] = owner;
+        System.arraycopy(slots, i, toReturn, i + 1, slots.length - i);
+        return toReturn;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean addAll(final Collection<? extends WrappedOWLEntity> c) {
+        return !this.addAll(c, TemplateProposalTrie.NO_OWNER).isEmpty();
+    }
+
+    /**
+     * Adds all entities given, owned by the ontology in the slot given, and
+     * publishes them at once.  Entities already present gain the ontology as
+     * an additional owner.
+     *
+     * @param c the entities to add
+     * @param owner the slot of the owning ontology or
+     *  {@link TemplateProposalTrie#NO_OWNER}
+     * @return the entities that were not yet present
+     */
+    public synchronized List<WrappedOWLEntity> addAll(
+            final Collection<? extends WrappedOWLEntity> c, final int owner) {
+        this.checkWritable();
+        final Edit edit = new Edit();
+        Node newRoot = this.root.get();
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>();
+        for (WrappedOWLEntity e : c) {
+            if (e == null)
+                throw new NullPointerException();
+            newRoot = TemplateProposalTrie.insert(newRoot,
+                    this.keyOf(e), 0, e, owner, edit);
+            if (edit.added)
+                toReturn.add(e);
+        }
+        this.root.set(newRoot);
+        return toReturn;
+    }
+
+    /**
+     * Adds all entities given like
+     * {@link TemplateProposalTrie#addAll(Collection, int)}, but builds the
+     * Trie in parallel on the executor given.  The keys are partitioned by
+     * their first char and every partition is turned into a subtree of the
+     * root on its own: partitions without an existing subtree are sorted by a
+     * most significant char first radix sort, which builds the subtree
+     * bottom-up along the way, all others are inserted into a copy of the
+     * existing subtree.  The subtrees are grafted into the root
+     * and published at once when all partitions are done.
+     * <p>
+     * The calling thread works on the partitions as well, so the load
+     * completes even if the executor is busy or rejects the work.  Small
+     * collections are added sequentially.
+     *
+     * @param c the entities to add
+     * @param owner the slot of the owning ontology or
+     *  {@link TemplateProposalTrie#NO_OWNER}
+     * @param executor the executor to build the subtrees on
+     * @return the entities that were not yet present
+     */
+    public synchronized List<WrappedOWLEntity> addAll(
+            final Collection<? extends WrappedOWLEntity> c, final int owner,
+            final Executor executor) {
+        if (c.size() < TemplateProposalTrie.PARALLEL_THRESHOLD)
+            return this.addAll(c, owner);
+        this.checkWritable();
+        final Node oldRoot = this.root.get();
+        final Edit edit = new Edit();
+        Node newRoot = oldRoot;
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>();
+
+        // Empty keys are stored in the root itself, all others partitioned.
+        final Map<Character, List<KeyedEntity>> partitions =
+                new TreeMap<Character, List<KeyedEntity>>();
+        for (WrappedOWLEntity e : c) {
+            if (e == null)
+                throw new NullPointerException();
+            final char[] key = this.keyOf(e);
+            if (key.length == 0) {
+                newRoot = TemplateProposalTrie.insert(newRoot, key, 0, e,
+                        owner, edit);
+                if (edit.added)
+                    toReturn.add(e);
+                continue;
+            }
+            List<KeyedEntity> partition = partitions.get(key[0]);
+            if (partition == null) {
+                partition = new ArrayList<KeyedEntity>();
+                partitions.put(key[0], partition);
+            }
+            partition.add(new KeyedEntity(key, e));
+        }
+
+        final List<Subtree> subtrees =
+                new ArrayList<Subtree>(partitions.size());
+        final List<FutureTask<Node>> tasks =
+                new ArrayList<FutureTask<Node>>(partitions.size());
+        for (Map.Entry<Character, List<KeyedEntity>> entry
+                : partitions.entrySet()) {
+            final Subtree subtree = new Subtree(entry.getValue(),
+                    oldRoot.child(entry.getKey()), owner);
+            final FutureTask<Node> task = new FutureTask<Node>(subtree);
+            subtrees.add(subtree);
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // ignore, the task will be run by this thread below
+            }
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            final FutureTask<Node> task = tasks.get(i);
+            task.run();
+            final Node child = TemplateProposalTrie.await(task);
+            final List<WrappedOWLEntity> added = subtrees.get(i).added;
+            if (added.isEmpty() && (child == oldRoot.child(child.label[0])))
+                continue;
+            newRoot = edit.editable(newRoot);
+            newRoot.putChild(child);
+            newRoot.count += added.size();
+            toReturn.addAll(added);
+        }
+        if (newRoot != oldRoot)
+            newRoot.updateSummary();
+        this.root.set(newRoot);
+        return toReturn;
+    }
+
+    /**
+     * Waits for the task given to complete, even if the waiting thread is
+     * interrupted.  The interrupt is restored afterwards.
+     *
+     * @param <T> the type of the task's result
+     * @param task the task to wait for
+     * @return the task's result
+     */
+    static <T> T await(final FutureTask<T> task) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException)
+                        throw (RuntimeException) e.getCause();
+                    if (e.getCause() instanceof Error)
+                        throw (Error) e.getCause();
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * An entity together with its key, sortable by key.
+     */
+    private static final class KeyedEntity
+            implements Comparable<KeyedEntity> {
+
+        /**
+         * The key.
+         */
+        private final char[] key;
+
+        /**
+         * The entity.
+         */
+        private final WrappedOWLEntity entity;
+
+        /**
+         * Creates a new keyed entity.
+         *
+         * @param k the key
+         * @param e the entity
+         */
+        private KeyedEntity(final char[] k, final WrappedOWLEntity e) {
+            this.key = k;
+            this.entity = e;
+        }
+
+        /**
+         * Compares the keys lexicographically.
+         *
+         * @param o the keyed entity to compare to
+         * @return the comparison result
+         */
+        public int compareTo(final KeyedEntity o) {
+            final int n = Math.min(this.key.length, o.key.length);
+            for (int i = 0; i < n; i++)
+                if (this.key[i] != o.key[i])
+                    return this.key[i] - o.key[i];
+            return this.key.length - o.key.length;
+        }
+
+    }
+
+    /**
+     * Builds the subtree of the root for a single partition of a bulk load.
+     * Every subtree is built by a modification of its own, so partitions can
+     * be built concurrently.
+     */
+    private static final class Subtree implements Callable<Node> {
+
+        /**
+         * The entities of the partition, all keys sharing their first char.
+         */
+        private final List<KeyedEntity> entries;
+
+        /**
+         * The existing subtree for the partition or <code>null</code>.
          */
-        TemplateProposalTrie node = this;
-        for (char element : eID.toCharArray()) {
-            if (!node.children.containsKey(element))
-                node.addEdge(element);
-            node = node.children.get(element);
+        private final Node existing;
+
+        /**
+         * The slot of the owning ontology.
+         */
+        private final int owner;
+
+        /**
+         * The entities that were not yet present.
+         */
+        private final List<WrappedOWLEntity> added =
+                new ArrayList<WrappedOWLEntity>();
+
+        /**
+         * Creates a new task for the partition given.
+         *
+         * @param partition the entities of the partition
+         * @param node the existing subtree or <code>null</code>
+         * @param slot the slot of the owning ontology
+         */
+        private Subtree(final List<KeyedEntity> partition, final Node node,
+                final int slot) {
+            this.entries = partition;
+            this.existing = node;
+            this.owner = slot;
         }
 
-        if (node.values == null)
-            node.values = new HashSet<WrappedOWLEntity>();
+        /**
+         * {@inheritDoc}
+         */
+        public Node call() {
+            final Edit edit = new Edit();
+            if (this.existing == null) {
+                final KeyedEntity[] unsorted = this.entries.toArray(
+                        new KeyedEntity[this.entries.size()]);
+                return TemplateProposalTrie.build(unsorted,
+                        new KeyedEntity[unsorted.length], 0, unsorted.length,
+                        0, this.owner, edit, this.added);
+            }
+
+            // Insert below a private stand-in for the root.
+            Node holder = new Node(TemplateProposalTrie.NO_CHARS, edit);
+            holder.putChild(this.existing);
+            holder.count = this.existing.count;
+            for (KeyedEntity k : this.entries) {
+                holder = TemplateProposalTrie.insert(holder, k.key, 0,
+                        k.entity, this.owner, edit);
+                if (edit.added)
+                    this.added.add(k.entity);
+            }
+            return holder.children[0];
+        }
 
-        return node.values.contains(e) ? false : node.values.add(e);
     }
 
     /**
-     * Helper method adding a new child and setting its value accordingly.
+     * Builds a new subtree bottom-up from a range of unsorted keys, which all
+     * share the chars up to the depth given and the char at that depth.  The
+     * range is partitioned by the first char following the keys' common
+     * prefix, which sorts it one char at a time, and every partition is built
+     * into a child the same way.  Small ranges are sorted as a whole.
      *
-     * @param e The edge to add.
+     * @param entries the entities, the range is reordered in place
+     * @param buffer scratch space as large as the entities
+     * @param from the start of the range, inclusive
+     * @param to the end of the range, exclusive
+     * @param depth the number of chars consumed by the path to the subtree
+     * @param owner the slot of the owning ontology
+     * @param edit the modification creating the nodes
+     * @param added the list to add the added entities to
+     * @return the root of the subtree
      */
-    private void addEdge(final char e) {
-        this.children.put(e, new TemplateProposalTrie());
+    private static Node build(final KeyedEntity[] entries,
+            final KeyedEntity[] buffer, final int from, final int to,
+            final int depth, final int owner, final Edit edit,
+            final List<WrappedOWLEntity> added) {
+        if (to - from <= TemplateProposalTrie.SMALL_RANGE) {
+            Arrays.sort(entries, from, to);
+            return TemplateProposalTrie.buildSorted(entries, from, to, depth,
+                    owner, edit, added);
+        }
+
+        final char[] first = entries[from].key;
+        int end = first.length;
+        for (int i = from + 1; i < to; i++) {
+            final char[] key = entries[i].key;
+            final int max = Math.min(end, key.length);
+            int j = depth;
+            while ((j < max) && (key[j] == first[j]))
+                j++;
+            end = j;
+        }
+        final Node toReturn =
+                new Node(Arrays.copyOfRange(first, depth, end), edit);
+
+        // Find the distinct chars following the common prefix.
+        char[] edges = new char[to - from];
+        int n = 0;
+        for (int i = from; i < to; i++)
+            if (entries[i].key.length > end)
+                edges[n++] = entries[i].key[end];
+        Arrays.sort(edges, 0, n);
+        int k = 0;
+        for (int i = 0; i < n; i++)
+            if ((k == 0) || (edges[i] != edges[k - 1]))
+                edges[k++] = edges[i];
+        edges = Arrays.copyOf(edges, k);
+
+        // Scatter the range into one bucket per char, keys ending here first.
+        final int[] starts = new int[k + 2];
+        final int[] buckets = new int[to - from];
+        for (int i = from; i < to; i++) {
+            final char[] key = entries[i].key;
+            final int b = (key.length == end)
+                    ? 0 : Arrays.binarySearch(edges, key[end]) + 1;
+            buckets[i - from] = b;
+            starts[b + 1]++;
+        }
+        for (int b = 1; b < starts.length; b++)
+            starts[b] += starts[b - 1];
+        final int[] next = starts.clone();
+        for (int i = from; i < to; i++)
+            buffer[from + next[buckets[i - from]]++] = entries[i];
+        System.arraycopy(buffer, from, entries, from, to - from);
+
+        for (int i = from; i < from + starts[1]; i++) {
+            if (toReturn.addValue(entries[i].entity,
+                    TemplateProposalTrie.withOwner(
+                            TemplateProposalTrie.NO_SLOTS, owner))) {
+                added.add(entries[i].entity);
+                toReturn.count++;
+            }
+        }
+        final Node[] children = new Node[k];
+        for (int b = 1; b <= k; b++) {
+            children[b - 1] = TemplateProposalTrie.build(entries, buffer,
+                    from + starts[b], from + starts[b + 1], end, owner, edit,
+                    added);
+            toReturn.count += children[b - 1].count;
+            toReturn.typeMask |= children[b - 1].typeMask;
+        }
+        toReturn.edges = edges;
+        toReturn.children = children;
+        return toReturn;
     }
 
     /**
-     * {@inheritDoc}
+     * Builds a new subtree bottom-up from a range of sorted keys, which all
+     * share the chars up to the depth given and the char at that depth.
+     *
+     * @param entries the sorted entities
+     * @param from the start of the range, inclusive
+     * @param to the end of the range, exclusive
+     * @param depth the number of chars consumed by the path to the subtree
+     * @param owner the slot of the owning ontology
+     * @param edit the modification creating the nodes
+     * @param added the list to add the added entities to
+     * @return the root of the subtree
      */
-    public boolean addAll(final Collection<? extends WrappedOWLEntity> c) {
-        boolean toReturn = false;
-        for (WrappedOWLEntity e : c)
-            toReturn = this.add(e) || toReturn;
+    private static Node buildSorted(final KeyedEntity[] entries,
+            final int from, final int to, final int depth, final int owner,
+            final Edit edit, final List<WrappedOWLEntity> added) {
+        final char[] first = entries[from].key;
+        final char[] last = entries[to - 1].key;
+        int end = depth;
+        while ((end < first.length) && (end < last.length)
+                && (first[end] == last[end]))
+            end++;
+
+        final Node toReturn =
+                new Node(Arrays.copyOfRange(first, depth, end), edit);
+        int i = from;
+        for (; (i < to) && (entries[i].key.length == end); i++) {
+            if (toReturn.addValue(entries[i].entity,
+                    TemplateProposalTrie.withOwner(
+                            TemplateProposalTrie.NO_SLOTS, owner))) {
+                added.add(entries[i].entity);
+                toReturn.count++;
+            }
+        }
+        while (i < to) {
+            final char c = entries[i].key[end];
+            int j = i + 1;
+            while ((j < to) && (entries[j].key[end] == c))
+                j++;
+            final Node child = TemplateProposalTrie.buildSorted(entries, i, j,
+                    end, owner, edit, added);
+            toReturn.putChild(child);
+            toReturn.count += child.count;
+            toReturn.typeMask |= child.typeMask;
+            i = j;
+        }
         return toReturn;
     }
 
     /**
      * {@inheritDoc}
      */
-    public void clear() {
-        this.values = null;
-        for (TemplateProposalTrie child : this.children.values())
-            child.clear();
-        this.children.clear();
+    public synchronized void clear() {
+        this.checkWritable();
+        this.root.set(new Node(TemplateProposalTrie.NO_CHARS, null));
     }
 
     /**
@@ -108,28 +1224,19 @@ public final class TemplateProposalTrie implements Set<WrappedOWLEntity> {
             throw new NullPointerException();
         if (!(o instanceof WrappedOWLEntity))
             return false;
-        char[] array = ((WrappedOWLEntity) o).getID().toCharArray();
 
-        // Try finding the array by traversing the edges one element at a time.
-        TemplateProposalTrie node = this;
-        for (char element : array) {
-            if (!node.children.containsKey(element))
-                return false;
-            node = node.children.get(element);
-        }
-        return node.flagged() ? node.values.contains(o) : false;
+        // Try finding the key by traversing the edges one label at a time.
+        final Node node = this.find(this.keyOf((WrappedOWLEntity) o));
+        return (node != null) && (node.indexOf(o) >= 0);
     }
 
     /**
      * {@inheritDoc}
      */
     public boolean containsAll(final Collection<?> c) {
-        boolean toReturn = true;
-        for (Object e : c) {
-            toReturn = toReturn && this.contains(e);
-            if (!toReturn)
+        for (Object e : c)
+            if (!this.contains(e))
                 return false;
-        }
         return true;
     }
 
@@ -137,8 +1244,7 @@ public final class TemplateProposalTrie implements Set<WrappedOWLEntity> {
      * {@inheritDoc}
      */
     public boolean isEmpty() {
-        return this.children.isEmpty()
-                && ((this.values == null) || (this.values.size() == 0));
+        return this.root.get().count == 0;
     }
 
     /**
@@ -146,96 +1252,470 @@ public final class TemplateProposalTrie implements Set<WrappedOWLEntity> {
      */
     @Override
     public Iterator<WrappedOWLEntity> iterator() {
-        return new Iterator<WrappedOWLEntity>() {
+        return new PrefixIterator(this.root.get());
+    }
 
-            /**
-             * Use the iterator from the set returned by the postfixes helper
-             * method.
-             */
-            private Iterator<WrappedOWLEntity> it =
-                    TemplateProposalTrie.this.postfixes().iterator();
+    /**
+     * Retrieves a lazy iterator over all entities down the Trie with the given
+     * prefix.  The entities are returned in lexicographic order of their keys
+     * and the subtree is walked in place while iterating, so stopping early
+     * does not cost anything for the entities never reached.
+     *
+     * @param prefix The key prefix to use.
+     * @return the iterator
+     */
+    public Iterator<WrappedOWLEntity> iterator(final String prefix) {
+        return new PrefixIterator(this.findPrefix(prefix));
+    }
 
-            /**
-             * {@inheritDoc}
-             */
-            public boolean hasNext() {
-                return this.it.hasNext();
-            }
+    /**
+     * A depth-first iterator walking a subtree in place.  Values of a node are
+     * returned before the values of its children and children are visited in
+     * the order of their edges, which results in lexicographic order.
+     */
+    private static final class PrefixIterator
+            implements Iterator<WrappedOWLEntity> {
 
-            /**
-             * {@inheritDoc}
-             */
-            public WrappedOWLEntity next() {
-                return this.it.next();
+        /**
+         * The nodes on the path from the subtree's root to the current node.
+         */
+        private Node[] stack = new Node[16];
+
+        /**
+         * The index of the next child to descend into for every node on the
+         * stack.
+         */
+        private int[] childIndex = new int[16];
+
+        /**
+         * The number of nodes on the stack.
+         */
+        private int depth;
+
+        /**
+         * The values of the current node.
+         */
+        private WrappedOWLEntity[] values;
+
+        /**
+         * The index of the next value to return.
+         */
+        private int valueIndex;
+
+        /**
+         * Creates a new iterator walking the subtree given.
+         *
+         * @param start the root of the subtree or <code>null</code> if the
+         *  iterator should be empty
+         */
+        private PrefixIterator(final Node start) {
+            if (start != null)
+                this.push(start);
+        }
+
+        /**
+         * Pushes a node onto the stack and makes its values the current ones.
+         *
+         * @param node the node to push
+         */
+        private void push(final Node node) {
+            if (this.depth == this.stack.length) {
+                this.stack = Arrays.copyOf(this.stack, this.depth * 2);
+                this.childIndex = Arrays.copyOf(this.childIndex,
+                        this.depth * 2);
             }
+            this.stack[this.depth] = node;
+            this.childIndex[this.depth] = 0;
+            this.depth++;
+            this.values = node.values;
+            this.valueIndex = 0;
+        }
 
-            /**
-             * Not supported, because removing from the underlying Set will not
-             * remove the object from the Trie structure. Use the Trie's remove
-             * function instead.
-             */
-            public void remove() {
-                throw new UnsupportedOperationException();
+        /**
+         * {@inheritDoc}
+         */
+        public boolean hasNext() {
+            while ((this.values == null)
+                    || (this.valueIndex >= this.values.length)) {
+                this.values = null;
+                if (this.depth == 0)
+                    return false;
+                final int top = this.depth - 1;
+                final Node node = this.stack[top];
+                if (this.childIndex[top] < node.children.length)
+                    this.push(node.children[this.childIndex[top]++]);
+                else
+                    this.stack[--this.depth] = null;
             }
-        };
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public WrappedOWLEntity next() {
+            if (!this.hasNext())
+                throw new NoSuchElementException();
+            return this.values[this.valueIndex++];
+        }
+
+        /**
+         * Not supported, because the iterator walks the Trie structure in
+         * place. Use the Trie's remove function instead.
+         */
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    /**
+     * Walks all entities down the Trie with the given prefix in lexicographic
+     * order of their keys and hands them to the visitor given, until the
+     * visitor asks to stop.
+     *
+     * @param prefix The key prefix to use.
+     * @param visitor the visitor to hand the entities to
+     * @return <code>true</code> if the whole subtree was visited,
+     *  <code>false</code> if the visitor stopped early
+     */
+    public boolean visit(final String prefix,
+            final ITemplateProposalVisitor visitor) {
+        final Node node = this.findPrefix(prefix);
+        return (node == null) || TemplateProposalTrie.visit(node, visitor);
+    }
+
+    /**
+     * Hands all values of the subtree given to the visitor.
+     *
+     * @param node the root of the subtree
+     * @param visitor the visitor to hand the entities to
+     * @return <code>false</code> if the visitor stopped early
+     */
+    private static boolean visit(final Node node,
+            final ITemplateProposalVisitor visitor) {
+        if (node.values != null)
+            for (WrappedOWLEntity e : node.values)
+                if (!visitor.visit(e))
+                    return false;
+        for (Node child : node.children)
+            if (!TemplateProposalTrie.visit(child, visitor))
+                return false;
+        return true;
     }
 
     /**
      * {@inheritDoc}
      */
-    public boolean remove(final Object o) {
+    public synchronized boolean remove(final Object o) {
         if (o == null)
             throw new NullPointerException();
+        this.checkWritable();
         if (!(o instanceof WrappedOWLEntity))
             return false;
-        char[] array = ((WrappedOWLEntity) o).getShortID()
-                .toLowerCase().toCharArray();
+        final Edit edit = new Edit();
+        final Node newRoot = TemplateProposalTrie.delete(this.root.get(),
+                this.keyOf((WrappedOWLEntity) o), 0, o, edit);
+        this.root.set(newRoot);
+        return edit.changed;
+    }
 
-        /*
-         * Zero length arrays can only be removed, when this root node contains
-         * the zero length value.
-         */
-        if ((array.length == 0) && this.flagged())
-            return this.values.remove(o);
+    /**
+     * Removes entities stored under arbitrary keys and publishes the result
+     * at once.
+     *
+     * @param keys the keys the entities are stored under
+     * @param entities the entities to remove, in the same order as the keys
+     * @return <code>true</code> if any entity was stored under its key
+     *
+     * @see TemplateProposalTrie#addAll(List, List)
+     */
+    synchronized boolean removeAll(final List<String> keys,
+            final List<? extends WrappedOWLEntity> entities) {
+        this.checkWritable();
+        final Edit edit = new Edit();
+        Node newRoot = this.root.get();
+        boolean toReturn = false;
+        for (int i = 0; i < keys.size(); i++) {
+            newRoot = TemplateProposalTrie.delete(newRoot,
+                    keys.get(i).toCharArray(), 0, entities.get(i), edit);
+            toReturn = edit.changed || toReturn;
+        }
+        this.root.set(newRoot);
+        return toReturn;
+    }
+
+    /**
+     * Walks down the key and removes the value from the node found.  On the
+     * way back up, the counts are updated and nodes left behind either empty
+     * or only forwarding to a single child are removed or merged.  Nodes not
+     * belonging to the modification are copied before they are changed.
+     *
+     * @param node the node to remove below
+     * @param key the key of the value
+     * @param i the offset within the key already consumed by the path
+     * @param o the value to remove
+     * @param edit the modification, which will know if the value was removed
+     * @return the node replacing the node given
+     */
+    private static Node delete(final Node node, final char[] key,
+            final int i, final Object o, final Edit edit) {
+        edit.changed = false;
+        if (i == key.length) {
+            if (node.indexOf(o) < 0)
+                return node;
+            final Node toReturn = edit.editable(node);
+            toReturn.removeValue(o);
+            toReturn.count--;
+            toReturn.updateSummary();
+            edit.changed = true;
+            return toReturn;
+        }
+
+        Node child = node.child(key[i]);
+        if ((child == null) || (TemplateProposalTrie.common(child.label, key, i)
+                < child.label.length))
+            return node;
+        child = TemplateProposalTrie.delete(child, key,
+                i + child.label.length, o, edit);
+        if (!edit.changed)
+            return node;
+
+        final Node toReturn = edit.editable(node);
+        toReturn.count--;
+        if (child.flagged() || (child.children.length > 1))
+            toReturn.putChild(child);
+        else if (child.children.length == 0)
+            toReturn.removeChild(child.label[0]);
+        else
+            toReturn.putChild(TemplateProposalTrie.merge(child, edit));
+        toReturn.updateSummary();
+        return toReturn;
+    }
+
+    /**
+     * Merges a value-less node having a single child with that child.
+     *
+     * @param node the node to merge with its only child
+     * @param edit the modification
+     * @return the merged node replacing the node given
+     */
+    private static Node merge(final Node node, final Edit edit) {
+        final Node toReturn = edit.editable(node.children[0]);
+        final char[] label =
+                new char[node.label.length + toReturn.label.length];
+        System.arraycopy(node.label, 0, label, 0, node.label.length);
+        System.arraycopy(toReturn.label, 0, label, node.label.length,
+                toReturn.label.length);
+        toReturn.label = label;
+        return toReturn;
+    }
+
+    /**
+     * Removes the ontology in the slot given from the owners of all entities
+     * and publishes the result at once.  Entities left without any owner are
+     * removed, entities still owned by other ontologies or added without an
+     * owner stay.  The Trie is walked once, no matter how many entities the
+     * ontology owns.
+     *
+     * @param owner the slot of the ontology to detach
+     * @return the entities that have been removed
+     */
+    public synchronized List<WrappedOWLEntity> detach(final int owner) {
+        this.checkWritable();
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>();
+        if (owner < 0)
+            return toReturn;
+        final Node newRoot = TemplateProposalTrie.detach(this.root.get(),
+                owner, new Edit(), toReturn);
+        this.root.set(newRoot);
+        return toReturn;
+    }
 
-        TemplateProposalTrie node = this;
-        TemplateProposalTrie lastEndNode = this;
-        int lastEndIndex = 0;
-        for (int i = 0; i < array.length; i++) {
+    /**
+     * Removes the ontology in the slot given from the owners of the entities
+     * given and publishes the result at once.  Entities left without any
+     * owner are removed, all others stay.  Only the paths to the entities
+     * given are walked.
+     *
+     * @param c the entities no longer provided by the ontology
+     * @param owner the slot of the ontology
+     * @return the entities that have been removed
+     */
+    public synchronized List<WrappedOWLEntity> detach(
+            final Collection<? extends WrappedOWLEntity> c, final int owner) {
+        this.checkWritable();
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>();
+        if (owner < 0)
+            return toReturn;
+        final Edit edit = new Edit();
+        Node newRoot = this.root.get();
+        for (WrappedOWLEntity e : c) {
+            newRoot = TemplateProposalTrie.detach(newRoot, this.keyOf(e), 0,
+                    e, owner, edit);
+            if (edit.changed)
+                toReturn.add(e);
+        }
+        this.root.set(newRoot);
+        return toReturn;
+    }
 
-            // Remember the last end node.
-            if (node.flagged() && (i < (array.length - 1))) {
-                lastEndNode = node;
-                lastEndIndex = i;
+    /**
+     * Walks down the key and removes the owner from the value of the node
+     * found, removing the value itself if it has no owner left.  On the way
+     * back up, the counts are updated and nodes left behind either empty or
+     * only forwarding to a single child are removed or merged, just like
+     * {@link TemplateProposalTrie#delete(Node, char[], int, Object, Edit)}
+     * does.
+     *
+     * @param node the node to detach below
+     * @param key the key of the value
+     * @param i the offset within the key already consumed by the path
+     * @param e the value
+     * @param owner the slot of the owner to remove
+     * @param edit the modification, which will know if the value was removed
+     * @return the node replacing the node given
+     */
+    private static Node detach(final Node node, final char[] key,
+            final int i, final WrappedOWLEntity e, final int owner,
+            final Edit edit) {
+        edit.changed = false;
+        if (i == key.length) {
+            final int index = node.indexOf(e);
+            if (index < 0)
+                return node;
+            final int[] slots = node.owners[index];
+            if ((slots == null) || (Arrays.binarySearch(slots, owner) < 0))
+                return node;
+            final Node toReturn = edit.editable(node);
+            if (slots.length == 1) {
+                toReturn.removeValueAt(index);
+                toReturn.count--;
+                toReturn.updateSummary();
+                edit.changed = true;
+            } else {
+                toReturn.owners[index] =
+                        TemplateProposalTrie.withoutOwner(slots, owner);
             }
-            if (!node.children.containsKey(array[i]))
-                return false;
-            node = node.children.get(array[i]);
+            return toReturn;
         }
 
-        /*
-         * Delete all subtrees leading from the last end node to the end of the
-         * array to delete.
-         */
-        if (node.flagged()) {
-            node = lastEndNode;
-            for (int i = lastEndIndex; i < array.length; i++) {
-                lastEndNode = node.children.get(array[i]);
-                node.children.remove(array[i]);
-                node = lastEndNode;
+        Node child = node.child(key[i]);
+        if ((child == null) || (TemplateProposalTrie.common(child.label, key, i)
+                < child.label.length))
+            return node;
+        final Node original = child;
+        child = TemplateProposalTrie.detach(child, key,
+                i + child.label.length, e, owner, edit);
+        if (!edit.changed) {
+            if (child == original)
+                return node;
+            final Node toReturn = edit.editable(node);
+            toReturn.putChild(child);
+            return toReturn;
+        }
+
+        final Node toReturn = edit.editable(node);
+        toReturn.count--;
+        if (child.flagged() || (child.children.length > 1))
+            toReturn.putChild(child);
+        else if (child.children.length == 0)
+            toReturn.removeChild(child.label[0]);
+        else
+            toReturn.putChild(TemplateProposalTrie.merge(child, edit));
+        toReturn.updateSummary();
+        return toReturn;
+    }
+
+    /**
+     * Removes the owner from all values of the subtree given.  On the way
+     * back up, the counts are updated and nodes left behind either empty or
+     * only forwarding to a single child are removed or merged.  Nodes not
+     * belonging to the modification are copied before they are changed.
+     *
+     * @param node the root of the subtree
+     * @param owner the slot of the owner to remove
+     * @param edit the modification
+     * @param removed the list to add the removed values to
+     * @return the node replacing the node given
+     */
+    private static Node detach(final Node node, final int owner,
+            final Edit edit, final List<WrappedOWLEntity> removed) {
+        Node toReturn = node;
+        if (node.values != null) {
+            for (int i = node.values.length - 1; i >= 0; i--) {
+                final int[] slots = node.owners[i];
+                if ((slots == null) || (Arrays.binarySearch(slots, owner) < 0))
+                    continue;
+                toReturn = edit.editable(toReturn);
+                if (slots.length == 1) {
+                    removed.add(toReturn.values[i]);
+                    toReturn.removeValueAt(i);
+                    toReturn.count--;
+                } else {
+                    toReturn.owners[i] =
+                            TemplateProposalTrie.withoutOwner(slots, owner);
+                }
             }
-            return true;
-        } else
-            return false;
+        }
+
+        final Node[] children = node.children;
+        for (int i = children.length - 1; i >= 0; i--) {
+            final int before = removed.size();
+            final Node child = TemplateProposalTrie.detach(children[i], owner,
+                    edit, removed);
+            if (child == children[i])
+                continue;
+            toReturn = edit.editable(toReturn);
+            toReturn.count -= removed.size() - before;
+            if (child.flagged() || (child.children.length > 1))
+                toReturn.putChild(child);
+            else if (child.children.length == 0)
+                toReturn.removeChild(child.label[0]);
+            else
+                toReturn.putChild(TemplateProposalTrie.merge(child, edit));
+        }
+        if (toReturn != node)
+            toReturn.updateSummary();
+        return toReturn;
+    }
+
+    /**
+     * Removes an owner from the sorted slots given.
+     *
+     * @param slots the slots, containing the owner
+     * @param owner the slot to remove
+     * @return the new slots
+     */
+    private static int[] withoutOwner(final int[] slots, final int owner) {
+        final int i = Arrays.binarySearch(slots, owner);
+        final int[] toReturn = new int[slots.length - 1];
+        System.arraycopy(slots, 0, toReturn, 0, i);
+        System.arraycopy(slots, i + 1, toReturn, i, slots.length - i - 1);
+        return toReturn;
     }
 
     /**
      * {@inheritDoc}
      */
-    public boolean removeAll(final Collection<?> c) {
+    public synchronized boolean removeAll(final Collection<?> c) {
+        this.checkWritable();
+        final Edit edit = new Edit();
+        Node newRoot = this.root.get();
         boolean toReturn = false;
-        for (Object o : c)
-            toReturn = this.remove(o) || toReturn;
+        for (Object o : c) {
+            if (o == null)
+                throw new NullPointerException();
+            if (!(o instanceof WrappedOWLEntity))
+                continue;
+            newRoot = TemplateProposalTrie.delete(newRoot,
+                    this.keyOf((WrappedOWLEntity) o), 0, o,
+                    edit);
+            toReturn = edit.changed || toReturn;
+        }
+        this.root.set(newRoot);
         return toReturn;
     }
 
@@ -252,57 +1732,496 @@ public final class TemplateProposalTrie implements Set<WrappedOWLEntity> {
      * {@inheritDoc}
      */
     public int size() {
-        return this.postfixes().size();
+        return this.root.get().count;
+    }
+
+    /**
+     * Counts the entities down the Trie with the given prefix without
+     * collecting them.
+     *
+     * @param prefix The key prefix to use.
+     * @return the number of entities with the given prefix
+     */
+    public int count(final String prefix) {
+        final Node node = this.findPrefix(prefix);
+        return (node == null) ? 0 : node.count;
     }
 
     /**
      * {@inheritDoc}
      */
     public Object[] toArray() {
-        return this.postfixes().toArray();
+        final Node r = this.root.get();
+        final Collection<WrappedOWLEntity> c =
+                new ArrayList<WrappedOWLEntity>(r.count);
+        r.collect(c);
+        return c.toArray();
     }
 
     /**
      * {@inheritDoc}
      */
     public <U> U[] toArray(final U[] a) {
-        return this.postfixes().toArray(a);
+        final Node r = this.root.get();
+        final Collection<WrappedOWLEntity> c =
+                new ArrayList<WrappedOWLEntity>(r.count);
+        r.collect(c);
+        return c.toArray(a);
     }
 
     /**
-     * Retrieves all arrays down the Trie from this root node.
+     * Walks all entities whose keys are within the given edit distance of the
+     * query and hands them to the visitor given, until the visitor asks to
+     * stop.  The Trie is intersected with a Levenshtein automaton for the
+     * query, so subtrees are skipped as soon as no key below them can be
+     * within the distance anymore.
+     * <p>
+     * In prefix mode, a key matches if any of its prefixes is within the
+     * distance, which suits queries that are still being typed.  The distance
+     * reported is then the one of the key's best matching prefix.
      *
-     * @return A <code>Set</code> of all arrays in this (sub)tree.
+     * @param query the query to compare the keys with
+     * @param maxDistance the maximum edit distance
+     * @param prefix <code>true</code> to match key prefixes
+     * @param visitor the visitor to hand the entities to
+     * @return <code>true</code> if the whole Trie was visited,
+     *  <code>false</code> if the visitor stopped early
      */
-    public Set<WrappedOWLEntity> postfixes() {
-        final Set<WrappedOWLEntity> toReturn = new HashSet<WrappedOWLEntity>();
-        if (this.flagged()) {
-            toReturn.addAll(this.values);
+    public boolean visitFuzzy(final String query, final int maxDistance,
+            final boolean prefix, final IFuzzyProposalVisitor visitor) {
+        final LevenshteinAutomaton automaton =
+                new LevenshteinAutomaton(this.folding.fold(query).toCharArray(),
+                        maxDistance);
+        return TemplateProposalTrie.visitFuzzy(this.root.get(), automaton, 0,
+                automaton.distance(0), prefix, visitor);
+    }
+
+    /**
+     * Intersects the subtree given with the automaton.
+     *
+     * @param node the root of the subtree
+     * @param automaton the automaton
+     * @param depth the length of the key leading to the node's edge
+     * @param best the distance of the best key prefix so far
+     * @param prefix <code>true</code> to match key prefixes
+     * @param visitor the visitor to hand the entities to
+     * @return <code>false</code> if the visitor stopped early
+     */
+    private static boolean visitFuzzy(final Node node,
+            final LevenshteinAutomaton automaton, final int depth,
+            final int best, final boolean prefix,
+            final IFuzzyProposalVisitor visitor) {
+        int d = depth;
+        int b = best;
+        for (char c : node.label) {
+            if (!automaton.step(d++, c))
+                return !prefix || (b > automaton.getMaxDistance())
+                        || TemplateProposalTrie.visitAll(node, b, visitor);
+            b = Math.min(b, automaton.distance(d));
+        }
+
+        final int distance = prefix ? b : automaton.distance(d);
+        if ((node.values != null)
+                && (distance <= automaton.getMaxDistance()))
+            for (WrappedOWLEntity e : node.values)
+                if (!visitor.visit(e, distance))
+                    return false;
+
+        for (Node child : node.children)
+            if (!TemplateProposalTrie.visitFuzzy(child, automaton, d, b,
+                    prefix, visitor))
+                return false;
+        return true;
+    }
+
+    /**
+     * Hands all values of the subtree given to the visitor.
+     *
+     * @param node the root of the subtree
+     * @param distance the distance to report for all values
+     * @param visitor the visitor to hand the entities to
+     * @return <code>false</code> if the visitor stopped early
+     */
+    private static boolean visitAll(final Node node, final int distance,
+            final IFuzzyProposalVisitor visitor) {
+        if (node.values != null)
+            for (WrappedOWLEntity e : node.values)
+                if (!visitor.visit(e, distance))
+                    return false;
+        for (Node child : node.children)
+            if (!TemplateProposalTrie.visitAll(child, distance, visitor))
+                return false;
+        return true;
+    }
+
+    /**
+     * Retrieves the entities whose keys are within the given edit distance of
+     * the query, closest first.  Entities with equal distances are returned in
+     * lexicographic order of their keys.
+     *
+     * @param query the query to compare the keys with
+     * @param maxDistance the maximum edit distance
+     * @param prefix <code>true</code> to match key prefixes
+     * @param limit the maximum number of entities to retrieve
+     * @return the matching entities, closest first
+     *
+     * @see TemplateProposalTrie#visitFuzzy(String, int, boolean,
+     *  IFuzzyProposalVisitor)
+     */
+    public List<WrappedOWLEntity> fuzzy(final String query,
+            final int maxDistance, final boolean prefix, final int limit) {
+        final List<List<WrappedOWLEntity>> buckets =
+                new ArrayList<List<WrappedOWLEntity>>(maxDistance + 1);
+        for (int i = 0; i <= maxDistance; i++)
+            buckets.add(new ArrayList<WrappedOWLEntity>());
+
+        /*
+         * Closer matches may still be found after the limit has been reached,
+         * so only an exhausted bucket of exact matches ends the search early.
+         */
+        this.visitFuzzy(query, maxDistance, prefix,
+                new IFuzzyProposalVisitor() {
+            public boolean visit(final WrappedOWLEntity entity,
+                    final int distance) {
+                final List<WrappedOWLEntity> bucket = buckets.get(distance);
+                if (bucket.size() < limit)
+                    bucket.add(entity);
+                return buckets.get(0).size() < limit;
+            }
+        });
+
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>();
+        for (List<WrappedOWLEntity> bucket : buckets)
+            for (WrappedOWLEntity e : bucket)
+                if (toReturn.size() < limit)
+                    toReturn.add(e);
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the score of the entity given.
+     *
+     * @param e the entity
+     * @return the entity's score or <code>0</code> if the entity is not
+     *  present
+     */
+    public int getScore(final WrappedOWLEntity e) {
+        final Node node = this.find(this.keyOf(e));
+        if (node == null)
+            return 0;
+        final int i = node.indexOf(e);
+        return (i < 0) ? 0 : node.scores[i];
+    }
+
+    /**
+     * Sets the score of the entity given and updates the maximum scores of
+     * all subtrees containing the entity.
+     *
+     * @param e the entity
+     * @param score the new, non-negative score
+     * @return <code>true</code> if the entity is present
+     */
+    public synchronized boolean setScore(final WrappedOWLEntity e,
+            final int score) {
+        if (score < 0)
+            throw new IllegalArgumentException();
+        this.checkWritable();
+        final Edit edit = new Edit();
+        final Node newRoot = TemplateProposalTrie.score(this.root.get(),
+                this.keyOf(e), 0, e, score, edit);
+        this.root.set(newRoot);
+        return edit.changed;
+    }
+
+    /**
+     * Raises the score of the entity given by one.
+     *
+     * @param e the entity
+     * @return <code>true</code> if the entity is present
+     */
+    public synchronized boolean incrementScore(final WrappedOWLEntity e) {
+        final int score = this.getScore(e);
+        return (score < Integer.MAX_VALUE) && this.setScore(e, score + 1);
+    }
+
+    /**
+     * Walks down the key and sets the value's score, updating the maximum
+     * scores on the way back up.  Nodes not belonging to the modification are
+     * copied before they are changed.
+     *
+     * @param node the node to search below
+     * @param key the key of the value
+     * @param i the offset within the key already consumed by the path
+     * @param e the value to set the score for
+     * @param score the new score
+     * @param edit the modification, which will know if the value was found
+     * @return the node replacing the node given
+     */
+    private static Node score(final Node node, final char[] key,
+            final int i, final WrappedOWLEntity e, final int score,
+            final Edit edit) {
+        edit.changed = false;
+        final Node toReturn;
+        if (i == key.length) {
+            final int j = node.indexOf(e);
+            if (j < 0)
+                return node;
+            toReturn = edit.editable(node);
+            toReturn.scores[j] = score;
+            edit.changed = true;
+        } else {
+            Node child = node.child(key[i]);
+            if ((child == null) || (TemplateProposalTrie.common(child.label,
+                    key, i) < child.label.length))
+                return node;
+            child = TemplateProposalTrie.score(child, key,
+                    i + child.label.length, e, score, edit);
+            if (!edit.changed)
+                return node;
+            toReturn = edit.editable(node);
+            toReturn.putChild(child);
+        }
+        toReturn.updateSummary();
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the <code>k</code> entities with the highest scores down the
+     * Trie with the given prefix, best first.  The subtree is searched
+     * best-first along the nodes' maximum scores, so only nodes that may hold
+     * one of the best <code>k</code> entities are ever expanded.  Entities
+     * with equal scores are searched depth-first and returned in key order,
+     * so the search stops after <code>k</code> entities even if no entity
+     * has been scored yet.  The search queues at most <code>k</code>
+     * entities at a time, together with the subtrees that may still hold
+     * better ones.
+     *
+     * @param prefix The key prefix to use.
+     * @param k the maximum number of entities to retrieve
+     * @return the best entities, highest score first
+     */
+    public List<WrappedOWLEntity> topK(final String prefix, final int k) {
+        return this.topK(prefix, k, TemplateProposalTrie.ALL_TYPES);
+    }
+
+    /**
+     * Retrieves the <code>k</code> entities of the types given with the
+     * highest scores down the Trie with the given prefix, best first.
+     * Subtrees without any entity of the types given are never expanded.
+     *
+     * @param prefix The key prefix to use.
+     * @param k the maximum number of entities to retrieve
+     * @param types the types of the entities to retrieve
+     * @return the best entities, highest score first
+     *
+     * @see TemplateProposalTrie#topK(String, int)
+     */
+    public List<WrappedOWLEntity> topK(final String prefix, final int k,
+            final EnumSet<WrappedOWLEntity.Types> types) {
+        return this.topK(prefix, k, TemplateProposalTrie.maskOf(types));
+    }
+
+    /**
+     * Retrieves the <code>k</code> entities of the types masked with the
+     * highest scores down the Trie with the given prefix, best first.
+     *
+     * @param prefix The key prefix to use.
+     * @param k the maximum number of entities to retrieve
+     * @param mask the type mask of the entities to retrieve
+     * @return the best entities, highest score first
+     */
+    private List<WrappedOWLEntity> topK(final String prefix, final int k,
+            final int mask) {
+        final Node start = this.findPrefix(prefix);
+        if ((start == null) || (k < 1) || ((start.typeMask & mask) == 0))
+            return new ArrayList<WrappedOWLEntity>(0);
+
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>(Math.min(k, start.count));
+        final TreeSet<Candidate> queue = new TreeSet<Candidate>();
+        final TreeSet<Candidate> values = new TreeSet<Candidate>();
+        long sequence = 0;
+        queue.add(new Candidate(start, -1, start.maxScore, sequence++));
+        while (!queue.isEmpty() && (toReturn.size() < k)) {
+            final Candidate c = queue.pollFirst();
+            if (c.index >= 0) {
+                values.remove(c);
+                toReturn.add(c.node.values[c.index]);
+                continue;
+            }
+
+            /*
+             * Candidates are added in reverse, as equal scores are taken last
+             * in, first out.  Without any scores, the search thus walks the
+             * subtree depth-first in key order and stops after k values.
+             */
+            final int remaining = k - toReturn.size();
+            final Node node = c.node;
+            for (int i = node.children.length - 1; i >= 0; i--)
+                if ((node.children[i].typeMask & mask) != 0)
+                    TemplateProposalTrie.offer(queue, values, remaining,
+                            new Candidate(node.children[i], -1,
+                                    node.children[i].maxScore, sequence++));
+            if (node.values != null)
+                for (int i = node.values.length - 1; i >= 0; i--)
+                    if ((TemplateProposalTrie.maskOf(node.values[i]) & mask)
+                            != 0)
+                        TemplateProposalTrie.offer(queue, values, remaining,
+                                new Candidate(node, i, node.scores[i],
+                                        sequence++));
+        }
+        return toReturn;
+    }
+
+    /**
+     * Adds a candidate to the best-first search's queue, keeping the queue
+     * bounded.  At most <code>remaining</code> values are queued, as no
+     * other value can be among the best.  Once that many values are queued,
+     * candidates scoring below the worst of them are dropped as well: none
+     * of their values could be taken before the queued ones.  Candidates
+     * scoring the same are kept, since the values of a subtree discovered
+     * later are taken before values with equal scores discovered earlier.
+     *
+     * @param queue the search's queue
+     * @param values the values in the queue
+     * @param remaining the number of values still to retrieve
+     * @param c the candidate to add
+     */
+    private static void offer(final TreeSet<Candidate> queue,
+            final TreeSet<Candidate> values, final int remaining,
+            final Candidate c) {
+        if (values.size() == remaining) {
+            final Candidate worst = values.last();
+            if ((c.score < worst.score)
+                    || ((c.index >= 0) && (c.compareTo(worst) > 0)))
+                return;
+        }
+        queue.add(c);
+        if (c.index < 0)
+            return;
+        values.add(c);
+        if (values.size() <= remaining)
+            return;
+        queue.remove(values.pollLast());
+        final int threshold = values.last().score;
+        if (threshold > Integer.MIN_VALUE)
+            queue.tailSet(new Candidate(null, 0, threshold - 1,
+                    Long.MAX_VALUE), true).clear();
+    }
+
+    /**
+     * An entry of the best-first search's priority queue.  A candidate either
+     * stands for a single value of a node or, if the index is negative, for a
+     * whole subtree.
+     */
+    private static final class Candidate implements Comparable<Candidate> {
+
+        /**
+         * The node of the candidate.
+         */
+        private final Node node;
+
+        /**
+         * The index of the value within the node or <code>-1</code> if the
+         * candidate is the node's subtree.
+         */
+        private final int index;
+
+        /**
+         * The score of the value or the maximum score of the subtree.
+         */
+        private final int score;
+
+        /**
+         * The order in which the candidate was discovered.
+         */
+        private final long sequence;
+
+        /**
+         * Creates a new candidate.
+         *
+         * @param n the node
+         * @param i the value index or <code>-1</code>
+         * @param s the score
+         * @param seq the discovery order
+         */
+        private Candidate(final Node n, final int i, final int s,
+                final long seq) {
+            this.node = n;
+            this.index = i;
+            this.score = s;
+            this.sequence = seq;
+        }
+
+        /**
+         * Higher scores come first.  On equal scores, values come before
+         * subtrees and later discoveries before earlier ones, so equal scores
+         * are searched depth-first.
+         *
+         * @param o the candidate to compare to
+         * @return the comparison result
+         */
+        public int compareTo(final Candidate o) {
+            if (this.score != o.score)
+                return (this.score > o.score) ? -1 : 1;
+            if ((this.index < 0) != (o.index < 0))
+                return (this.index < 0) ? 1 : -1;
+            if (this.sequence != o.sequence)
+                return (this.sequence > o.sequence) ? -1 : 1;
+            return 0;
         }
 
-        for (TemplateProposalTrie t : this.children.values())
-            toReturn.addAll(t.postfixes());
+    }
 
+    /**
+     * Retrieves all entities down the Trie from the root node.
+     *
+     * @return A <code>Set</code> of all entities in this tree.
+     */
+    public Set<WrappedOWLEntity> postfixes() {
+        final Node r = this.root.get();
+        final Set<WrappedOWLEntity> toReturn =
+                new HashSet<WrappedOWLEntity>(r.count * 4 / 3 + 1);
+        r.collect(toReturn);
         return toReturn;
     }
 
     /**
-     * Retrieves all arrays down the Trie with the given prefix.
+     * Retrieves all entities down the Trie with the given prefix.
      *
-     * @param prefix The array prefix to use.
-     * @return A <code>Set</code> of all arrays in this (sub)tree with the given
+     * @param prefix The key prefix to use.
+     * @return A <code>Set</code> of all entities in this tree with the given
      *  prefix. Note, that the prefix will be returned as part of the set's
      *  elements.
      */
     public Set<WrappedOWLEntity> postfixes(final String prefix) {
-        TemplateProposalTrie currentNode = this;
-        for (char element : prefix.toCharArray()) {
-            if (!currentNode.children.containsKey(element)) {
-                return new HashSet<WrappedOWLEntity>();
-            }
-            currentNode = currentNode.children.get(element);
-        }
-        return currentNode.postfixes();
+        final Node node = this.findPrefix(prefix);
+        if (node == null)
+            return new HashSet<WrappedOWLEntity>();
+        final Set<WrappedOWLEntity> toReturn =
+                new HashSet<WrappedOWLEntity>(node.count * 4 / 3 + 1);
+        node.collect(toReturn);
+        return toReturn;
+    }
+
+    /**
+     * Retrieves all entities of the types given down the Trie with the given
+     * prefix.  Every node knows the types stored in its subtree, so subtrees
+     * without any of the types given are skipped as a whole.
+     *
+     * @param prefix The key prefix to use.
+     * @param types the types of the entities to retrieve
+     * @return A <code>Set</code> of all entities in this tree of the given
+     *  types and with the given prefix.
+     */
+    public Set<WrappedOWLEntity> postfixes(final String prefix,
+            final EnumSet<WrappedOWLEntity.Types> types) {
+        final Node node = this.findPrefix(prefix);
+        final Set<WrappedOWLEntity> toReturn = new HashSet<WrappedOWLEntity>();
+        if (node != null)
+            node.collect(toReturn, TemplateProposalTrie.maskOf(types));
+        return toReturn;
     }
 
 }
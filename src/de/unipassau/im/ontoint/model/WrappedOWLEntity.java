@@ -1,16 +1,18 @@
 package de.unipassau.im.ontoint.model;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.eclipse.core.runtime.Assert;
-import org.semanticweb.owlapi.model.OWLClass;
-import org.semanticweb.owlapi.model.OWLDataProperty;
-import org.semanticweb.owlapi.model.OWLDatatype;
 import org.semanticweb.owlapi.model.OWLEntity;
-import org.semanticweb.owlapi.model.OWLNamedIndividual;
 import org.semanticweb.owlapi.model.OWLOntology;
 
 /**
@@ -70,16 +72,35 @@ public final class WrappedOWLEntity {
         Other
     }
 
+    /**
+     * The number of signature entities wrapped by a single task when entities
+     * are extracted in parallel.
+     */
+    private static final int EXTRACTION_CHUNK = 2048;
+
     /**
      * Caching {@link WrappedOWLEntity} singletons will ensure, that instances
      * can be accessed from multiple parts. Of course it is always possible
      * to create new, extra instances from the public constructors.
      */
-    private static Map<String, WrappedOWLEntity> cache =
-            new HashMap<String, WrappedOWLEntity>();
+    private static final EntityTable table = new EntityTable();
 
     /**
-     * The full length ID of this entity.
+     * The namespaces of all entities.
+     */
+    private static final NamespaceDictionary namespaces =
+            new NamespaceDictionary();
+
+    /**
+     * The index of this entity's namespace, the part of the ID in front of
+     * the short ID.
+     */
+    private int namespace;
+
+    /**
+     * The full length ID of this entity, or <code>null</code> if it is just
+     * the namespace followed by the short ID.  Only IDs whose short ID is not
+     * a proper suffix (eg. IRIs without a fragment) are stored in full.
      */
     private String longID;
 
@@ -93,6 +114,13 @@ public final class WrappedOWLEntity {
      */
     private WrappedOWLEntity.Types type;
 
+    /**
+     * The short ID folded by {@link CaseFolding#UNICODE}, which is the key the
+     * entity is indexed by.  Folding it once here spares every lookup the
+     * allocation of a folded copy.
+     */
+    private char[] key;
+
     /**
      * Creates a new instance with the ID and type given.  The short ID will be
      * created on instanciation.
@@ -102,9 +130,9 @@ public final class WrappedOWLEntity {
      */
     public WrappedOWLEntity(final String entityID,
             final WrappedOWLEntity.Types entityType) {
-        this.longID = entityID;
-        this.shortID = this.generateShortID(this.longID);
+        this.setID(entityID, this.generateShortID(entityID));
         this.type = entityType;
+        this.key = CaseFolding.UNICODE.fold(this.shortID).toCharArray();
     }
 
     /**
@@ -113,23 +141,29 @@ public final class WrappedOWLEntity {
      * @param entity the entity to create a wrapped version of
      */
     public WrappedOWLEntity(final OWLEntity entity) {
-        this.longID = entity.toStringID();
-        this.shortID = this.generateShortID(this.longID);
-        if (entity.isOWLClass()) {
-            this.type = WrappedOWLEntity.Types.OWLClass;
-        } else if (entity.isOWLDataProperty()) {
-            this.type = WrappedOWLEntity.Types.OWLDataProperty;
-        } else if (entity.isOWLDatatype()) {
-            this.type = WrappedOWLEntity.Types.OWLDataType;
-        } else if (entity.isOWLNamedIndividual()) {
-            this.type = WrappedOWLEntity.Types.OWLNamedIndividual;
-        } else if (entity.isOWLObjectProperty()) {
-            this.type = WrappedOWLEntity.Types.OWLObjectProperty;
-        } else if (entity.isOWLAnnotationProperty()) {
-            this.type = WrappedOWLEntity.Types.OWLAnnotationProperty;
-        } else {
-            this.type = WrappedOWLEntity.Types.Other;
-        }
+        this(entity.toStringID(), WrappedOWLEntity.typeOf(entity));
+    }
+
+    /**
+     * Determines the type of the {@link OWLEntity} given.
+     *
+     * @param entity the entity
+     * @return the type
+     */
+    static WrappedOWLEntity.Types typeOf(final OWLEntity entity) {
+        if (entity.isOWLClass())
+            return WrappedOWLEntity.Types.OWLClass;
+        if (entity.isOWLDataProperty())
+            return WrappedOWLEntity.Types.OWLDataProperty;
+        if (entity.isOWLDatatype())
+            return WrappedOWLEntity.Types.OWLDataType;
+        if (entity.isOWLNamedIndividual())
+            return WrappedOWLEntity.Types.OWLNamedIndividual;
+        if (entity.isOWLObjectProperty())
+            return WrappedOWLEntity.Types.OWLObjectProperty;
+        if (entity.isOWLAnnotationProperty())
+            return WrappedOWLEntity.Types.OWLAnnotationProperty;
+        return WrappedOWLEntity.Types.Other;
     }
 
     /**
@@ -138,10 +172,28 @@ public final class WrappedOWLEntity {
      * @param ontology the ontology to create a wrapped version of
      */
     public WrappedOWLEntity(final OWLOntology ontology) {
-        this.longID = ontology.getOntologyID().toString();
-        this.shortID = this.longID.substring(this.longID.lastIndexOf('/') + 1,
-                this.longID.length() - 1);
+        final String id = ontology.getOntologyID().toString();
+        this.setID(id, id.substring(id.lastIndexOf('/') + 1,
+                id.length() - 1));
         this.type = WrappedOWLEntity.Types.OWLOntology;
+        this.key = CaseFolding.UNICODE.fold(this.shortID).toCharArray();
+    }
+
+    /**
+     * Splits the ID given into its namespace and short ID.  The namespace is
+     * shared through the dictionary, and the ID itself is only kept if it
+     * cannot be rebuilt from the namespace and the short ID.
+     *
+     * @param id the full length ID
+     * @param shortName the short ID, a substring of the ID
+     */
+    private void setID(final String id, final String shortName) {
+        final int local = Math.max(id.lastIndexOf(shortName), 0);
+        this.namespace = WrappedOWLEntity.namespaces.indexOf(
+                id.substring(0, local));
+        this.shortID = shortName;
+        if ((local == 0) || (local + shortName.length() != id.length()))
+            this.longID = id;
     }
 
     /**
@@ -163,7 +215,51 @@ public final class WrappedOWLEntity {
      * @return the ID
      */
     public String getID() {
-        return this.longID;
+        if (this.longID != null)
+            return this.longID;
+        return WrappedOWLEntity.namespaces.get(this.namespace)
+                .concat(this.shortID);
+    }
+
+    /**
+     * Does this entity have the ID given?  The ID is not rebuilt for the
+     * comparison.
+     *
+     * @param id the ID
+     * @return <code>true</code> if the IDs are equal
+     */
+    boolean hasID(final String id) {
+        if (this.longID != null)
+            return this.longID.equals(id);
+        final String prefix = WrappedOWLEntity.namespaces.get(this.namespace);
+        return (id.length() == prefix.length() + this.shortID.length())
+                && id.startsWith(prefix) && id.endsWith(this.shortID);
+    }
+
+    /**
+     * Computes the hash code of the entity's ID, the same as
+     * <code>getID().hashCode()</code>, without rebuilding the ID.
+     *
+     * @return the hash code of the ID
+     */
+    int getIDHash() {
+        if (this.longID != null)
+            return this.longID.hashCode();
+        final String prefix = WrappedOWLEntity.namespaces.get(this.namespace);
+        int toReturn = prefix.hashCode();
+        for (int i = 0; i < this.shortID.length(); i++)
+            toReturn = 31 * toReturn + this.shortID.charAt(i);
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the entity's namespace, the part of the ID in front of the
+     * short ID.
+     *
+     * @return the namespace, empty if the short ID is the full ID
+     */
+    public String getNamespace() {
+        return WrappedOWLEntity.namespaces.get(this.namespace);
     }
 
     /**
@@ -175,6 +271,25 @@ public final class WrappedOWLEntity {
         return this.shortID;
     }
 
+    /**
+     * Retrieves the entity's short ID folded by {@link CaseFolding#UNICODE}.
+     *
+     * @return the folded short ID
+     */
+    public String getFoldedID() {
+        return new String(this.key);
+    }
+
+    /**
+     * Retrieves the entity's key, the folded short ID.  The array is shared
+     * and must not be changed.
+     *
+     * @return the key
+     */
+    char[] getKey() {
+        return this.key;
+    }
+
     /**
      * Retrieves the entity's type.
      *
@@ -203,23 +318,111 @@ public final class WrappedOWLEntity {
      */
     public static Set<WrappedOWLEntity> getEntitiesFrom(
             final OWLOntology ontology) {
-        Set<WrappedOWLEntity> toReturn = new HashSet<WrappedOWLEntity>();
+        final List<OWLEntity> signature =
+                WrappedOWLEntity.getSignature(ontology);
+        final Set<WrappedOWLEntity> toReturn =
+                new HashSet<WrappedOWLEntity>(signature.size() * 2);
+        toReturn.add(WrappedOWLEntity.getEntityFor(ontology));
+        new Extraction(signature, toReturn).run();
+        return toReturn;
+    }
 
+    /**
+     * Returns wrapped entity instances for all entities in the given ontology,
+     * wrapping chunks of the ontology's signature in parallel on the executor
+     * given.  The calling thread works on the chunks as well, so the
+     * extraction completes even if the executor is busy or rejects the work.
+     *
+     * @param ontology entities from this ontology will be wrapped
+     * @param executor the executor to wrap the entities on
+     * @return the wrapped entity instances
+     */
+    public static Set<WrappedOWLEntity> getEntitiesFrom(
+            final OWLOntology ontology, final Executor executor) {
+        final List<OWLEntity> signature =
+                WrappedOWLEntity.getSignature(ontology);
+        final Set<WrappedOWLEntity> toReturn = Collections.newSetFromMap(
+                new ConcurrentHashMap<WrappedOWLEntity, Boolean>(
+                        signature.size() + 1));
         toReturn.add(WrappedOWLEntity.getEntityFor(ontology));
 
-        for (OWLClass c : ontology.getClassesInSignature(false))
-            toReturn.add(WrappedOWLEntity.getEntityFor(c));
+        final List<FutureTask<Object>> tasks =
+                new ArrayList<FutureTask<Object>>();
+        for (int from = 0; from < signature.size();
+                from += WrappedOWLEntity.EXTRACTION_CHUNK) {
+            final int to = Math.min(signature.size(),
+                    from + WrappedOWLEntity.EXTRACTION_CHUNK);
+            final FutureTask<Object> task = new FutureTask<Object>(
+                    new Extraction(signature.subList(from, to), toReturn),
+                    null);
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // ignore, the task will be run by this thread below
+            }
+        }
+        for (FutureTask<Object> task : tasks) {
+            task.run();
+            TemplateProposalTrie.await(task);
+        }
+        return toReturn;
+    }
+
+    /**
+     * Lists all entities in the signature of the given ontology, excluding
+     * the imported ontologies: classes, individuals, data and object
+     * properties, annotation properties and datatypes.
+     *
+     * @param ontology the ontology
+     * @return the entities
+     */
+    static List<OWLEntity> getSignature(final OWLOntology ontology) {
+        final List<OWLEntity> toReturn = new ArrayList<OWLEntity>();
+        toReturn.addAll(ontology.getClassesInSignature(false));
+        toReturn.addAll(ontology.getIndividualsInSignature(false));
+        toReturn.addAll(ontology.getDataPropertiesInSignature(false));
+        toReturn.addAll(ontology.getObjectPropertiesInSignature(false));
+        toReturn.addAll(ontology.getAnnotationPropertiesInSignature());
+        toReturn.addAll(ontology.getDatatypesInSignature(false));
+        return toReturn;
+    }
 
-        for (OWLNamedIndividual i : ontology.getIndividualsInSignature(false))
-            toReturn.add(WrappedOWLEntity.getEntityFor(i));
+    /**
+     * Wraps a part of an ontology's signature.
+     */
+    private static final class Extraction implements Runnable {
 
-        for (OWLDataProperty d : ontology.getDataPropertiesInSignature(false))
-            toReturn.add(WrappedOWLEntity.getEntityFor(d));
+        /**
+         * The entities to wrap.
+         */
+        private final List<OWLEntity> entities;
 
-        for (OWLDatatype t : ontology.getDatatypesInSignature(false))
-            toReturn.add(WrappedOWLEntity.getEntityFor(t));
+        /**
+         * The set to add the wrapped entities to.
+         */
+        private final Collection<WrappedOWLEntity> result;
+
+        /**
+         * Creates a new extraction of the entities given.
+         *
+         * @param toWrap the entities to wrap
+         * @param wrapped the set to add the wrapped entities to
+         */
+        private Extraction(final List<OWLEntity> toWrap,
+                final Collection<WrappedOWLEntity> wrapped) {
+            this.entities = toWrap;
+            this.result = wrapped;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void run() {
+            for (OWLEntity e : this.entities)
+                this.result.add(WrappedOWLEntity.getEntityFor(e));
+        }
 
-        return toReturn;
     }
 
     /**
@@ -230,13 +433,12 @@ public final class WrappedOWLEntity {
      * @return the wrapped entity instance
      */
     public static WrappedOWLEntity getEntityFor(final OWLEntity entity) {
-        WrappedOWLEntity toReturn =
-                WrappedOWLEntity.cache.get(entity.toStringID());
-        if (toReturn == null) {
-            toReturn = new WrappedOWLEntity(entity);
-            WrappedOWLEntity.cache.put(entity.toStringID(), toReturn);
-        }
-        return toReturn;
+        final String id = entity.toStringID();
+        final WrappedOWLEntity toReturn = WrappedOWLEntity.table.lookup(id);
+        if (toReturn != null)
+            return toReturn;
+        return WrappedOWLEntity.table.intern(new WrappedOWLEntity(id,
+                WrappedOWLEntity.typeOf(entity)));
     }
 
     /**
@@ -247,14 +449,34 @@ public final class WrappedOWLEntity {
      * @return the wrapped entity instance
      */
     public static WrappedOWLEntity getEntityFor(final OWLOntology ontology) {
-        String id = ontology.getOntologyID().toString();
-        WrappedOWLEntity toReturn =
-                WrappedOWLEntity.cache.get(id);
-        if (toReturn == null) {
-            toReturn = new WrappedOWLEntity(ontology);
-            WrappedOWLEntity.cache.put(id, toReturn);
-        }
-        return toReturn;
+        final WrappedOWLEntity toReturn = WrappedOWLEntity.table.lookup(
+                ontology.getOntologyID().toString());
+        if (toReturn != null)
+            return toReturn;
+        return WrappedOWLEntity.table.intern(new WrappedOWLEntity(ontology));
+    }
+
+    /**
+     * Retrieves an cached instance (if it exists) for the ID given or creates
+     * a new instance of the type given if no cached singleton instance was
+     * found.
+     *
+     * @param entityID the entity ID
+     * @param entityType the entity type
+     * @return the wrapped entity instance
+     */
+    public static WrappedOWLEntity getEntityFor(final String entityID,
+            final WrappedOWLEntity.Types entityType) {
+        return WrappedOWLEntity.table.intern(entityID, entityType);
+    }
+
+    /**
+     * Retrieves the table of all cached singleton instances.
+     *
+     * @return the entity table
+     */
+    public static EntityTable getEntityTable() {
+        return WrappedOWLEntity.table;
     }
 
     /**
@@ -262,7 +484,7 @@ public final class WrappedOWLEntity {
      * serialized.
      */
     public static void clearCache() {
-        WrappedOWLEntity.cache.clear();
+        WrappedOWLEntity.table.clear();
     }
 
 }
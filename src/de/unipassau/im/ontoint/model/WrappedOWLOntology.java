@@ -13,18 +13,97 @@ import org.semanticweb.owlapi.reasoner.structural.StructuralReasonerFactory;
  * wrapper is necessary to retrieve extra information such as if the ontology
  * was imported by an other ontology and the original document ID. Each
  * ontology also needs a reasoner for structural (class hierarchy) reasoning.
+ * <p>
+ * To stay within its memory budget, the {@link WrappedOWLOntologyManager}
+ * may offload ontologies not used recently.  An offloaded ontology drops its
+ * axioms and reasoner, but its entities stay available for completion.
+ * Retrieving the ontology or reasoner of an offloaded ontology returns
+ * <code>null</code> and has the manager load its document again in the
+ * background; the manager's listeners are notified once it is available.
+ * <p>
+ * Ontologies restored from an {@link OntologySnapshot} are partial: they
+ * consist of the entities and the class hierarchy only, and are kept out of
+ * the {@link WrappedOWLOntologyManager#getWrappedManager() wrapped manager}.
+ * Their documents are only parsed, in the background, once the ontology
+ * itself is retrieved.  Until then the reasoner works on the partial
+ * ontology, while the ontology itself is not returned.
  */
 public final class WrappedOWLOntology implements IAdaptable {
 
     /**
-     * The wrapped ontology.
+     * The estimated number of bytes retained per axiom, including the
+     * ontology's internal indexes over the axioms.
      */
-    private OWLOntology wrappedOntology;
+    private static final long AXIOM_BYTES = 400;
 
     /**
-     * The reasoner used for class hierarchy building.
+     * The estimated number of bytes of the reasoner's caches per class.
      */
-    private OWLReasoner reasoner;
+    private static final long CLASS_BYTES = 200;
+
+    /**
+     * The estimated number of bytes per entity in the completion indexes.
+     */
+    private static final long ENTITY_BYTES = 240;
+
+    /**
+     * The wrapped ontology or <code>null</code> while offloaded.
+     */
+    private volatile OWLOntology wrappedOntology;
+
+    /**
+     * The reasoner used for class hierarchy building or <code>null</code>
+     * while offloaded.
+     */
+    private volatile OWLReasoner reasoner;
+
+    /**
+     * The ID of the wrapped ontology, kept while offloaded.
+     */
+    private OWLOntologyID ontologyID;
+
+    /**
+     * The number of axioms of the wrapped ontology.
+     */
+    private int axiomCount;
+
+    /**
+     * The number of classes in the wrapped ontology's signature.
+     */
+    private int classCount;
+
+    /**
+     * The number of entities in the wrapped ontology's signature.
+     */
+    private int entityCount;
+
+    /**
+     * The time the ontology or reasoner was last retrieved.
+     */
+    private volatile long lastUsed = System.nanoTime();
+
+    /**
+     * The time the ontology or reasoner was last handed out, or
+     * <code>0</code> if they never were.
+     */
+    private volatile long handedOut;
+
+    /**
+     * <code>true</code> if the ontology has been changed since it was loaded.
+     */
+    private volatile boolean modified;
+
+    /**
+     * <code>true</code> if the ontology was restored from a snapshot and
+     * lacks all axioms but declarations and the class hierarchy.
+     */
+    private volatile boolean partial;
+
+    /**
+     * The manager loading the ontology again after it was offloaded or
+     * <code>null</code> if the ontology is never offloaded.
+     */
+    private WrappedOWLOntologyManager manager;
 
     /**
      * <code>true</code> if the ontology was imported by an other ontology.
@@ -46,20 +125,32 @@ public final class WrappedOWLOntology implements IAdaptable {
      */
     public WrappedOWLOntology(final OWLOntology ontology,
             final boolean imported, final IRI iri) {
-        this.wrappedOntology = ontology;
         this.isImported = imported;
         this.documentIRI = iri;
-        this.reasoner =
-                (new StructuralReasonerFactory()).createReasoner(ontology);
+        this.rehydrate(ontology);
     }
 
     /**
-     * Gets the wrapped ontology.
+     * Gets the wrapped ontology, loading it again in the background if it
+     * was offloaded or is partial.  This method never blocks, so it may be
+     * called on the UI thread: while the ontology is loaded again it returns
+     * <code>null</code>, and callers have to check for that.  Once the
+     * ontology is available, the manager posts it in
+     * {@link WrappedOWLOntologyManagerEvent#getChanged()}, which is the cue to
+     * call this method again.
      *
-     * @return the wrapped ontology
+     * @return the wrapped ontology or <code>null</code> while it is loaded
+     *  again
      */
     public OWLOntology getWrappedOntology() {
-        return wrappedOntology;
+        this.lastUsed = System.nanoTime();
+        final OWLOntology toReturn = this.wrappedOntology;
+        if (((toReturn != null) && !this.partial) || (this.manager == null)) {
+            this.handedOut = this.lastUsed;
+            return toReturn;
+        }
+        this.manager.requestRehydrate(this);
+        return null;
     }
 
     /**
@@ -81,21 +172,164 @@ public final class WrappedOWLOntology implements IAdaptable {
     }
 
     /**
-     * Retrieves the reasoner used for class hierarchy building.
+     * Retrieves the reasoner used for class hierarchy building, loading the
+     * ontology again in the background if it was offloaded.  Like
+     * {@link WrappedOWLOntology#getWrappedOntology()}, this method never
+     * blocks and returns <code>null</code> until the manager posts the
+     * ontology in {@link WrappedOWLOntologyManagerEvent#getChanged()}.
      *
-     * @return the reasoner associated with this ontology
+     * @return the reasoner associated with this ontology or <code>null</code>
+     *  while it is loaded again
      */
     public OWLReasoner getReasoner() {
-        return this.reasoner;
+        this.lastUsed = System.nanoTime();
+        final OWLReasoner toReturn = this.reasoner;
+        if (toReturn != null)
+            this.handedOut = this.lastUsed;
+        else if (this.manager != null)
+            this.manager.requestRehydrate(this);
+        return toReturn;
     }
 
     /**
-     * Retrieves the {@link OWLOntologyID} of the wrapped ontology.
+     * Retrieves the {@link OWLOntologyID} of the wrapped ontology.  The ID is
+     * available without loading an offloaded ontology again.
      *
      * @return the ontology ID
      */
     public OWLOntologyID getOntologyID() {
-        return this.wrappedOntology.getOntologyID();
+        final OWLOntology ontology = this.wrappedOntology;
+        if (ontology == null)
+            return this.ontologyID;
+        return ontology.getOntologyID();
+    }
+
+    /**
+     * Has the ontology been offloaded to save memory?
+     *
+     * @return <code>true</code> if the axioms and reasoner were dropped
+     */
+    public boolean isOffloaded() {
+        return this.wrappedOntology == null;
+    }
+
+    /**
+     * Estimates the number of bytes retained by this ontology: its axioms,
+     * the reasoner's caches and its entries in the completion indexes.  Only
+     * the completion indexes are retained while the ontology is offloaded.
+     *
+     * @return the estimated retained size in bytes
+     */
+    public long getRetainedSize() {
+        long toReturn = this.entityCount * WrappedOWLOntology.ENTITY_BYTES;
+        if (!this.isOffloaded())
+            toReturn += this.axiomCount * WrappedOWLOntology.AXIOM_BYTES
+                    + this.classCount * WrappedOWLOntology.CLASS_BYTES;
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the time the ontology or reasoner was last retrieved.
+     *
+     * @return the time in nanoseconds as given by {@link System#nanoTime()}
+     */
+    long getLastUsed() {
+        return this.lastUsed;
+    }
+
+    /**
+     * Has the ontology or reasoner been handed out within the time given?
+     * Callers may still be using them, so the ontology is not offloaded.
+     *
+     * @param nanos the time in nanoseconds
+     * @return <code>true</code> if the ontology may still be in use
+     */
+    boolean isHandedOutWithin(final long nanos) {
+        final long time = this.handedOut;
+        return (time != 0) && (System.nanoTime() - time < nanos);
+    }
+
+    /**
+     * Retrieves the wrapped ontology without loading it again.
+     *
+     * @return the wrapped ontology or <code>null</code> while offloaded
+     */
+    OWLOntology peekOntology() {
+        return this.wrappedOntology;
+    }
+
+    /**
+     * Sets the manager loading the ontology again after it was offloaded.
+     *
+     * @param owner the manager
+     */
+    void setManager(final WrappedOWLOntologyManager owner) {
+        this.manager = owner;
+    }
+
+    /**
+     * Has the ontology been changed since it was loaded?  Changes are not
+     * written back to the document, so changed ontologies are not offloaded.
+     *
+     * @return <code>true</code> if the ontology has been changed
+     */
+    boolean isModified() {
+        return this.modified;
+    }
+
+    /**
+     * Marks the ontology as changed since it was loaded.
+     */
+    void setModified() {
+        this.modified = true;
+    }
+
+    /**
+     * Has the ontology been restored from a snapshot, lacking all axioms but
+     * declarations and the class hierarchy?
+     *
+     * @return <code>true</code> if the ontology is partial
+     */
+    boolean isPartial() {
+        return this.partial;
+    }
+
+    /**
+     * Marks the ontology as restored from a snapshot.
+     */
+    void setPartial() {
+        this.partial = true;
+    }
+
+    /**
+     * Drops the wrapped ontology and reasoner.  The reasoner is not disposed
+     * here, as a view may still be traversing it.
+     *
+     * @return the dropped reasoner or <code>null</code>
+     */
+    OWLReasoner offload() {
+        final OWLReasoner toReturn = this.reasoner;
+        this.ontologyID = this.wrappedOntology.getOntologyID();
+        this.wrappedOntology = null;
+        this.reasoner = null;
+        return toReturn;
+    }
+
+    /**
+     * Wraps the ontology given, when created or after the ontology has been
+     * loaded again from its document, and creates a new reasoner for it.
+     *
+     * @param ontology the loaded ontology
+     */
+    void rehydrate(final OWLOntology ontology) {
+        this.ontologyID = ontology.getOntologyID();
+        this.axiomCount = ontology.getAxiomCount();
+        this.classCount = ontology.getClassesInSignature(false).size();
+        this.entityCount = ontology.getSignature(false).size();
+        this.reasoner =
+                (new StructuralReasonerFactory()).createReasoner(ontology);
+        this.wrappedOntology = ontology;
+        this.partial = false;
     }
 
     /**
@@ -1,16 +1,45 @@
 package de.unipassau.im.ontoint.model;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.core.runtime.Assert;
 import org.semanticweb.owlapi.apibinding.OWLManager;
+import org.semanticweb.owlapi.model.AddAxiom;
+import org.semanticweb.owlapi.model.AddImport;
+import org.semanticweb.owlapi.model.AddOntologyAnnotation;
+import org.semanticweb.owlapi.model.AxiomType;
+import org.semanticweb.owlapi.model.IRI;
+import org.semanticweb.owlapi.model.OWLAnnotation;
+import org.semanticweb.owlapi.model.OWLAxiom;
+import org.semanticweb.owlapi.model.OWLEntity;
+import org.semanticweb.owlapi.model.OWLImportsDeclaration;
 import org.semanticweb.owlapi.model.OWLOntology;
-import org.semanticweb.owlapi.model.OWLOntologyLoaderListener;
+import org.semanticweb.owlapi.model.OWLOntologyChange;
+import org.semanticweb.owlapi.model.OWLOntologyChangeListener;
+import org.semanticweb.owlapi.model.OWLOntologyCreationException;
+import org.semanticweb.owlapi.model.OWLOntologyID;
 import org.semanticweb.owlapi.model.OWLOntologyManager;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
 
 /**
  * The main entry point to the model.  The {@link WrappedOWLOntologyManager}
@@ -20,19 +49,37 @@ import org.semanticweb.owlapi.model.OWLOntologyManager;
  * @author Philipp Nolte
  */
 public final class WrappedOWLOntologyManager
-        implements OWLOntologyLoaderListener {
+        implements OWLOntologyChangeListener {
+
+    /**
+     * The time in nanoseconds an ontology counts as in use after its
+     * ontology or reasoner has been handed out.  Ontologies in use are not
+     * offloaded.
+     */
+    private static final long IN_USE_NANOS = TimeUnit.SECONDS.toNanos(30);
 
     /**
      * The wrapped {@link OWLOntologyManager}.
      */
     private OWLOntologyManager wrappedManager;
 
+    /**
+     * Holds the partial ontologies restored from snapshots, so they never
+     * show up in the wrapped manager.  A partial ontology is replaced by its
+     * full ontology in the wrapped manager once the full ontology has been
+     * asked for and its document has been parsed in the background.
+     */
+    private OWLOntologyManager snapshotManager;
+
     /**
      * A list of listeners listening for
-     * {@link WrappedOWLOntologyManagerEvent}s.
+     * {@link WrappedOWLOntologyManagerEvent}s.  Views add and remove
+     * themselves while events are delivered, so the list is copied on write
+     * and iterated without locking.
      */
     private Collection<IWrappedOWLOntologyManagerChangeListener> listeners =
-            new LinkedList<IWrappedOWLOntologyManagerChangeListener>();
+            new CopyOnWriteArrayList<
+                    IWrappedOWLOntologyManagerChangeListener>();
 
     /**
      * A {@link Map} mapping wrapped ontologies to their original.  This will
@@ -40,14 +87,96 @@ public final class WrappedOWLOntologyManager
      * {@link OWLOntology}s.
      */
     private Map<OWLOntology, WrappedOWLOntology> wrappedOntologies =
-            new Hashtable<OWLOntology, WrappedOWLOntology>();
+            new ConcurrentHashMap<OWLOntology, WrappedOWLOntology>();
+
+    /**
+     * The wrapped ontologies as returned by
+     * {@link WrappedOWLOntologyManager#getWrappedOntologies()}, replaced
+     * whenever an ontology is added or removed.
+     */
+    private volatile WrappedOWLOntology[] ontologySnapshot =
+            new WrappedOWLOntology[0];
 
     /**
      * The Trie containing all the string templates available for autocomplete
-     * from the managed ontologies.
+     * from the managed ontologies.  The Trie and the secondary indexes publish
+     * immutable snapshots, so reading them never blocks, not even while an
+     * import job is filling them.
      */
     private TemplateProposalTrie proposalTrie = new TemplateProposalTrie();
 
+    /**
+     * The secondary index over the word boundaries of the templates in the
+     * proposal Trie.
+     */
+    private AbbreviationIndex abbreviationIndex = new AbbreviationIndex();
+
+    /**
+     * The secondary index over the substrings of the templates in the
+     * proposal Trie.
+     */
+    private SubstringIndex substringIndex = new SubstringIndex();
+
+    /**
+     * The slots owning the proposal Trie's entries per loaded ontology.
+     */
+    private Map<OWLOntology, Integer> ontologySlots =
+            new Hashtable<OWLOntology, Integer>();
+
+    /**
+     * The slots currently in use.  Slots of removed ontologies are reused.
+     */
+    private BitSet usedSlots = new BitSet();
+
+    /**
+     * The slots of the offloaded ontologies.  Their entities stay in the
+     * proposal Trie while their axioms have been dropped.
+     */
+    private Map<WrappedOWLOntology, Integer> offloadedSlots =
+            new HashMap<WrappedOWLOntology, Integer>();
+
+    /**
+     * The estimated number of bytes the loaded ontologies may retain before
+     * the least recently used ones are offloaded.
+     */
+    private volatile long memoryBudget = Long.MAX_VALUE;
+
+    /**
+     * The serialized proposal index answering prefix queries until the
+     * ontologies it was built from have been loaded, or <code>null</code>.
+     */
+    private volatile ProposalIndexFile warmIndex;
+
+    /**
+     * The threads building the indexes in bulk, one per core.  Idle threads
+     * time out, so the pool costs nothing between imports.
+     */
+    private ThreadPoolExecutor indexExecutor;
+
+    /**
+     * The thread loading offloaded and partial ontologies again, so neither
+     * the display thread nor the manager's lock waits for the parser.
+     */
+    private ThreadPoolExecutor rehydrateExecutor;
+
+    /**
+     * The ontologies handed to the rehydrate executor and not loaded yet.
+     */
+    private Set<WrappedOWLOntology> rehydrating =
+            new HashSet<WrappedOWLOntology>();
+
+    /**
+     * The coordinator loading ontology documents into this manager.
+     */
+    private OntologyLoadCoordinator loadCoordinator;
+
+    /**
+     * The bus merging added and removed ontologies into events for the
+     * listeners.
+     */
+    private WrappedOWLOntologyManagerEventBus eventBus =
+            new WrappedOWLOntologyManagerEventBus(this);
+
     /**
      * Creates a new {@link WrappedOWLOntologyManager} instance that will use
      * a default {@link OWLOntologyManager}.
@@ -62,11 +191,41 @@ public final class WrappedOWLOntologyManager
         this.wrappedManager = OWLManager.createOWLOntologyManager();
 
         /*
-         * To make this WrappedOWLOntologyManager communicate load and remove
-         * events to listeners in the view, it has to listen to the wrapped
-         * manager first.
+         * Edits of loaded ontologies are applied to the indexes as they
+         * happen, instead of reloading the ontology.
          */
-        this.wrappedManager.addOntologyLoaderListener(this);
+        this.wrappedManager.addOntologyChangeListener(this);
+
+        /*
+         * Partial ontologies restored from snapshots live in a manager of
+         * their own, which nobody listens to.
+         */
+        this.snapshotManager = OWLManager.createOWLOntologyManager();
+
+        final int cores = Runtime.getRuntime().availableProcessors();
+        this.indexExecutor = new ThreadPoolExecutor(cores, cores, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread toReturn = new Thread(r, "Ontology Indexer");
+                toReturn.setDaemon(true);
+                return toReturn;
+            }
+        });
+        this.indexExecutor.allowCoreThreadTimeOut(true);
+
+        this.rehydrateExecutor = new ThreadPoolExecutor(1, 1, 30,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread toReturn = new Thread(r, "Ontology Rehydrator");
+                toReturn.setDaemon(true);
+                return toReturn;
+            }
+        });
+        this.rehydrateExecutor.allowCoreThreadTimeOut(true);
+
+        this.loadCoordinator = new OntologyLoadCoordinator(this);
     }
 
     /**
@@ -114,6 +273,33 @@ public final class WrappedOWLOntologyManager
         this.notifyListeners(event);
     }
 
+    /**
+     * Posts added and removed ontologies to the listeners.  Unlike
+     * {@link WrappedOWLOntologyManager#notifyListeners(Object[], Object[])},
+     * this method does not wait for the listeners.  All ontologies posted
+     * until the listeners are notified are merged into a single event.
+     *
+     * @param added the added ontologies
+     * @param removed the removed ontologies
+     *
+     * @see WrappedOWLOntologyManager#setEventExecutor(Executor)
+     */
+    public void postEvent(final Object[] added, final Object[] removed) {
+        this.eventBus.post(added, removed);
+    }
+
+    /**
+     * Sets the executor notifying the listeners about posted events, eg. one
+     * running the notification on the display thread.  Without an executor,
+     * the listeners are notified by the posting thread.
+     *
+     * @param executor the executor or <code>null</code> to notify on the
+     *  posting thread
+     */
+    public void setEventExecutor(final Executor executor) {
+        this.eventBus.setExecutor(executor);
+    }
+
     /**
      * Retrieves the wrapped {@link OWLOntologyManager}.
      *
@@ -124,43 +310,40 @@ public final class WrappedOWLOntologyManager
     }
 
     /**
-     * {@inheritDoc}
+     * Retrieves the coordinator loading ontology documents into this
+     * manager.  Documents should be loaded through the coordinator instead of
+     * the wrapped manager, which is not safe for concurrent imports.
+     *
+     * @return the coordinator
      */
-    public void startedLoadingOntology(final LoadingStartedEvent event) {
-
-        /*
-         * There is nothing to do here.  The start of the loading process will
-         * trigger the view's progress monitor to show in the controller. The
-         * model does not have anything to do with that.
-         */
+    public OntologyLoadCoordinator getLoadCoordinator() {
+        return this.loadCoordinator;
     }
 
     /**
      * {@inheritDoc}
      */
-    public void finishedLoadingOntology(final LoadingFinishedEvent event) {
-        if (!event.isSuccessful())
-            return;
-
-        /*
-         * Map the original Ontology to the wrapped ontology.  Calling
-         * WrappedOWLOntologyManager#getWrappedOntologie will allow the
-         * retrieval of the successfully loaded ontology handed over by the
-         * LoadingFinishedEvent.
-         */
-        final OWLOntology original = this.wrappedManager.getOntology(
-                event.getOntologyID());
-        final WrappedOWLOntology wrappedOriginal = new WrappedOWLOntology(
-                original,
-                event.isImported(),
-                event.getDocumentIRI());
-        this.wrappedOntologies.put(original, wrappedOriginal);
-
-        /*
-         * All the ontology's relevant entities have to be added to the
-         * autocomplete template trie.
-         */
-        this.fillTree(original);
+    public void ontologiesChanged(
+            final List<? extends OWLOntologyChange> changes) {
+        final Map<OWLOntology, Set<OWLEntity>> touched =
+                new HashMap<OWLOntology, Set<OWLEntity>>();
+        for (OWLOntologyChange change : changes) {
+            if (!change.isAxiomChange()
+                    || !this.ontologySlots.containsKey(change.getOntology()))
+                continue;
+            Set<OWLEntity> entities = touched.get(change.getOntology());
+            if (entities == null) {
+                entities = new HashSet<OWLEntity>();
+                touched.put(change.getOntology(), entities);
+                final WrappedOWLOntology wrapped =
+                        this.wrappedOntologies.get(change.getOntology());
+                if (wrapped != null)
+                    wrapped.setModified();
+            }
+            entities.addAll(change.getAxiom().getSignature());
+        }
+        for (Map.Entry<OWLOntology, Set<OWLEntity>> entry : touched.entrySet())
+            this.updateTree(entry.getKey(), entry.getValue());
     }
 
     /**
@@ -174,14 +357,27 @@ public final class WrappedOWLOntologyManager
     }
 
     /**
-     * Retrieves the wrapped ontologies.
+     * Retrieves the wrapped ontologies.  The array is shared by all callers
+     * until an ontology is added or removed, so it must not be modified.
      *
      * @return the wrapped ontologies
      */
     public WrappedOWLOntology[] getWrappedOntologies() {
-        Collection<WrappedOWLOntology> toReturn =
-                this.wrappedOntologies.values();
-        return toReturn.toArray(new WrappedOWLOntology[toReturn.size()]);
+        return this.ontologySnapshot;
+    }
+
+    /**
+     * Replaces the array returned by
+     * {@link WrappedOWLOntologyManager#getWrappedOntologies()} after an
+     * ontology has been added or removed.
+     */
+    private synchronized void publishOntologies() {
+        final List<WrappedOWLOntology> ontologies =
+                new ArrayList<WrappedOWLOntology>(
+                        this.wrappedOntologies.values());
+        ontologies.addAll(this.offloadedSlots.keySet());
+        this.ontologySnapshot =
+                ontologies.toArray(new WrappedOWLOntology[ontologies.size()]);
     }
 
     /**
@@ -201,21 +397,433 @@ public final class WrappedOWLOntologyManager
                  */
                 final WrappedOWLOntology wrappedOntology =
                         (WrappedOWLOntology) element;
-                final OWLOntology original =
-                        wrappedOntology.getWrappedOntology();
 
+                this.removeOntology(wrappedOntology);
+
+                this.postEvent(null, new Object[] {wrappedOntology});
+            }
+        }
+    }
+
+    /**
+     * Removes an ontology from the wrapped manager and the indexes.
+     *
+     * @param ontology the ontology to remove
+     */
+    private synchronized void removeOntology(
+            final WrappedOWLOntology ontology) {
+        final OWLOntology original = ontology.peekOntology();
+        final Integer slot;
+        if (original == null) {
+            slot = this.offloadedSlots.remove(ontology);
+        } else {
+            if (ontology.isPartial())
+                this.snapshotManager.removeOntology(original);
+            else
                 this.wrappedManager.removeOntology(original);
-                this.wrappedOntologies.remove(original);
-                this.clearTree(original);
+            this.wrappedOntologies.remove(original);
+            slot = this.ontologySlots.remove(original);
+        }
+        this.publishOntologies();
+        this.clearTree(slot);
+    }
+
+    /**
+     * Is the ontology or ontology document with the IRI given loaded?
+     *
+     * @param iri the ontology or document IRI
+     * @return <code>true</code> if the ontology is loaded
+     */
+    synchronized boolean isLoaded(final IRI iri) {
+        if (this.wrappedManager.contains(iri))
+            return true;
+        for (WrappedOWLOntology o : this.ontologySnapshot)
+            if (iri.equals(o.getDocumentIRI())
+                    || iri.equals(o.getOntologyID().getOntologyIRI()))
+                return true;
+        return false;
+    }
+
+    /**
+     * Retrieves the declarations of the loaded ontology with the IRI given
+     * and of the loaded ontologies it imports, so a document importing the
+     * ontology can be parsed with the entity types declared there.
+     *
+     * @param iri the ontology or document IRI
+     * @return the declarations or <code>null</code> if the ontology is not
+     *  loaded or has been offloaded
+     */
+    synchronized Set<OWLAxiom> getDeclarations(final IRI iri) {
+        Set<OWLAxiom> toReturn = null;
+        final Set<IRI> visited = new HashSet<IRI>();
+        final LinkedList<IRI> pending = new LinkedList<IRI>();
+        pending.add(iri);
+        while (!pending.isEmpty()) {
+            final IRI next = pending.removeFirst();
+            if (!visited.add(next))
+                continue;
+            for (WrappedOWLOntology o : this.ontologySnapshot) {
+                final OWLOntology loaded = o.peekOntology();
+                if ((loaded == null) || !(next.equals(o.getDocumentIRI())
+                        || next.equals(o.getOntologyID().getOntologyIRI())))
+                    continue;
+                if (toReturn == null)
+                    toReturn = new HashSet<OWLAxiom>();
+                toReturn.addAll(loaded.getAxioms(AxiomType.DECLARATION));
+                for (OWLImportsDeclaration declaration
+                        : loaded.getImportsDeclarations())
+                    pending.add(declaration.getIRI());
+                break;
+            }
+        }
+        return toReturn;
+    }
+
+    /**
+     * Copies an ontology parsed by another {@link OWLOntologyManager} into the
+     * wrapped manager, adds its entities to the indexes and posts it to the
+     * listeners.  Ontologies are
+     * bound to the manager that created them, so the imports, annotations and
+     * axioms of the parsed ontology are added to a new ontology with the same
+     * ID.  The imports are not loaded by this method.
+     *
+     * @param parsed the parsed ontology
+     * @param documentIRI the IRI of the document the ontology was parsed from
+     * @param imported <code>true</code> if the ontology was imported by an
+     *  other ontology
+     * @return the wrapped copy or <code>null</code> if an ontology with the
+     *  same ID is already loaded
+     * @throws OWLOntologyCreationException if the copy could not be created
+     */
+    synchronized WrappedOWLOntology merge(final OWLOntology parsed,
+            final IRI documentIRI, final boolean imported)
+        throws OWLOntologyCreationException {
+        if (this.contains(parsed.getOntologyID()))
+            return null;
+        return this.add(this.copy(parsed, documentIRI), documentIRI,
+                imported, false);
+    }
+
+    /**
+     * Restores an ontology from its snapshot, adds its entities to the
+     * indexes and posts it to the listeners.  The restored ontology is
+     * partial and kept out of the wrapped manager.  Its document is only
+     * parsed once the full ontology is retrieved, so unchanged documents are
+     * not parsed at all as long as the entities and the class hierarchy
+     * suffice.
+     *
+     * @param snapshot the snapshot of the ontology's document
+     * @param documentIRI the IRI of the document the snapshot was taken from
+     * @param imported <code>true</code> if the ontology was imported by an
+     *  other ontology
+     * @return the restored ontology or <code>null</code> if an ontology with
+     *  the same ID is already loaded
+     * @throws OWLOntologyCreationException if the ontology could not be
+     *  created
+     *
+     * @see WrappedOWLOntology#getWrappedOntology()
+     */
+    synchronized WrappedOWLOntology restore(final OntologySnapshot snapshot,
+            final IRI documentIRI, final boolean imported)
+        throws OWLOntologyCreationException {
+        if (this.contains(snapshot.getOntologyID()))
+            return null;
+        final OWLOntology original = snapshot.restore(this.snapshotManager);
+        this.snapshotManager.setOntologyDocumentIRI(original, documentIRI);
+        final WrappedOWLOntology toReturn =
+                this.add(original, documentIRI, imported, true);
+        return toReturn;
+    }
+
+    /**
+     * Is an ontology with the ID given loaded or offloaded?
+     *
+     * @param id the ontology ID
+     * @return <code>true</code> if the ontology is managed
+     */
+    private boolean contains(final OWLOntologyID id) {
+        if (this.wrappedManager.contains(id)
+                || this.snapshotManager.contains(id))
+            return true;
+        for (WrappedOWLOntology o : this.offloadedSlots.keySet())
+            if (o.getOntologyID().equals(id))
+                return true;
+        return false;
+    }
+
+    /**
+     * Wraps an ontology created in the wrapped or snapshot manager, adds its
+     * entities to the indexes and posts it to the listeners.
+     *
+     * @param original the ontology in the wrapped or snapshot manager
+     * @param documentIRI the IRI of the ontology's document
+     * @param imported <code>true</code> if the ontology was imported by an
+     *  other ontology
+     * @param partial <code>true</code> if the ontology was restored from a
+     *  snapshot into the snapshot manager
+     * @return the wrapped ontology
+     */
+    private WrappedOWLOntology add(final OWLOntology original,
+            final IRI documentIRI, final boolean imported,
+            final boolean partial) {
+        final WrappedOWLOntology toReturn =
+                new WrappedOWLOntology(original, imported, documentIRI);
+        toReturn.setManager(this);
+        if (partial)
+            toReturn.setPartial();
+        this.wrappedOntologies.put(original, toReturn);
+        this.publishOntologies();
+        this.fillTree(original);
+        this.enforceBudget(toReturn);
+        this.postEvent(new Object[] {toReturn}, null);
+        return toReturn;
+    }
+
+    /**
+     * Copies the imports, annotations and axioms of an ontology parsed by
+     * another {@link OWLOntologyManager} to a new ontology with the same ID in
+     * the wrapped manager.
+     *
+     * @param parsed the parsed ontology
+     * @param documentIRI the IRI of the document the ontology was parsed from
+     * @return the copy
+     * @throws OWLOntologyCreationException if the copy could not be created
+     */
+    private OWLOntology copy(final OWLOntology parsed, final IRI documentIRI)
+        throws OWLOntologyCreationException {
+        final OWLOntology toReturn =
+                this.wrappedManager.createOntology(parsed.getOntologyID());
+        this.wrappedManager.setOntologyDocumentIRI(toReturn, documentIRI);
+        final List<OWLOntologyChange> changes =
+                new ArrayList<OWLOntologyChange>();
+        for (OWLImportsDeclaration declaration
+                : parsed.getImportsDeclarations())
+            changes.add(new AddImport(toReturn, declaration));
+        for (OWLAnnotation annotation : parsed.getAnnotations())
+            changes.add(new AddOntologyAnnotation(toReturn, annotation));
+        for (OWLAxiom axiom : parsed.getAxioms())
+            changes.add(new AddAxiom(toReturn, axiom));
+        this.wrappedManager.applyChanges(changes);
+        return toReturn;
+    }
+
+    /**
+     * Sets the estimated number of bytes the loaded ontologies may retain.
+     * Whenever an ontology is loaded and the budget is exceeded, the least
+     * recently used ontologies are offloaded: their axioms and reasoners are
+     * dropped, while their entities stay available for completion.  An
+     * offloaded ontology is loaded again from its document in the background
+     * as soon as it is used.
+     *
+     * @param bytes the budget in bytes
+     *
+     * @see WrappedOWLOntology#getRetainedSize()
+     */
+    public void setMemoryBudget(final long bytes) {
+        this.memoryBudget = bytes;
+        this.enforceBudget(null);
+    }
+
+    /**
+     * Retrieves the estimated number of bytes the loaded ontologies may
+     * retain.
+     *
+     * @return the budget in bytes
+     */
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * Estimates the number of bytes retained by all managed ontologies.
+     *
+     * @return the estimated retained size in bytes
+     */
+    public long getRetainedSize() {
+        long toReturn = 0;
+        for (WrappedOWLOntology o : this.ontologySnapshot)
+            toReturn += o.getRetainedSize();
+        return toReturn;
+    }
+
+    /**
+     * Offloads the least recently used ontologies until the retained size is
+     * within the memory budget.  Changed ontologies, ontologies imported by a
+     * loaded ontology and ontologies handed out recently are not offloaded,
+     * so the budget may be exceeded until they are no longer in use.  Partial
+     * ontologies are not offloaded either, they retain little more than
+     * their entries in the completion indexes.
+     *
+     * @param keep the ontology to keep loaded or <code>null</code>
+     */
+    private synchronized void enforceBudget(final WrappedOWLOntology keep) {
+        long retained = this.getRetainedSize();
+        while (retained > this.memoryBudget) {
+            WrappedOWLOntology victim = null;
+            for (WrappedOWLOntology o : this.wrappedOntologies.values())
+                if ((o != keep) && !o.isModified() && !o.isPartial()
+                        && !o.isHandedOutWithin(
+                                WrappedOWLOntologyManager.IN_USE_NANOS)
+                        && ((victim == null)
+                                || (o.getLastUsed() < victim.getLastUsed()))
+                        && !this.isImportedByLoaded(o))
+                    victim = o;
+            if (victim == null)
+                return;
 
-                this.notifyListeners(null, new Object[] {wrappedOntology});
+            final long size = victim.getRetainedSize();
+            final OWLOntology original = victim.peekOntology();
+            this.offloadedSlots.put(victim,
+                    this.ontologySlots.remove(original));
+            this.wrappedOntologies.remove(original);
+            this.wrappedManager.removeOntology(original);
+            this.dispose(victim.offload());
+            retained -= size - victim.getRetainedSize();
+        }
+    }
+
+    /**
+     * Disposes a dropped reasoner once the listeners are done with the
+     * current event, so a view traversing it on the display thread is not
+     * disturbed.
+     *
+     * @param reasoner the reasoner or <code>null</code>
+     */
+    private void dispose(final OWLReasoner reasoner) {
+        if (reasoner == null)
+            return;
+        this.eventBus.execute(new Runnable() {
+            public void run() {
+                reasoner.dispose();
             }
+        });
+    }
+
+    /**
+     * Is the ontology given imported by a loaded ontology?
+     *
+     * @param ontology the ontology
+     * @return <code>true</code> if a loaded ontology imports it
+     */
+    private boolean isImportedByLoaded(final WrappedOWLOntology ontology) {
+        final IRI ontologyIRI = ontology.getOntologyID().getOntologyIRI();
+        for (OWLOntology o : this.wrappedOntologies.keySet())
+            for (OWLImportsDeclaration declaration
+                    : o.getImportsDeclarations())
+                if (declaration.getIRI().equals(ontologyIRI)
+                        || declaration.getIRI().equals(
+                                ontology.getDocumentIRI()))
+                    return true;
+        return false;
+    }
+
+    /**
+     * Loads an offloaded or partial ontology again in the background, unless
+     * it is already being loaded.  The listeners are notified about the
+     * ontology as changed once it has been loaded.
+     *
+     * @param ontology the offloaded or partial ontology
+     */
+    void requestRehydrate(final WrappedOWLOntology ontology) {
+        synchronized (this.rehydrating) {
+            if (!this.rehydrating.add(ontology))
+                return;
         }
+        this.rehydrateExecutor.execute(new Runnable() {
+            public void run() {
+                final WrappedOWLOntologyManager manager =
+                        WrappedOWLOntologyManager.this;
+                try {
+                    manager.rehydrate(ontology);
+                } finally {
+                    synchronized (manager.rehydrating) {
+                        manager.rehydrating.remove(ontology);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads an offloaded or partial ontology again from its document.  The
+     * document is parsed without holding the manager's lock, which is only
+     * taken to copy the parsed ontology into the wrapped manager.  The
+     * ontology keeps its slot in the proposal Trie, so only entities added to
+     * the document meanwhile are indexed.  Offloaded ontologies it imports
+     * are loaded again afterwards.
+     *
+     * @param ontology the offloaded or partial ontology
+     * @return the loaded ontology or <code>null</code> if the ontology has
+     *  been removed or its document could not be loaded
+     */
+    private OWLOntology rehydrate(final WrappedOWLOntology ontology) {
+        synchronized (this) {
+            final OWLOntology loaded = ontology.peekOntology();
+            if ((loaded != null) && !ontology.isPartial())
+                return loaded;
+        }
+
+        final OWLOntology parsed;
+        try {
+            parsed = this.loadCoordinator.parseDocument(
+                    ontology.getDocumentIRI());
+        } catch (OWLOntologyCreationException e) {
+            return null;
+        }
+
+        final OWLOntology toReturn;
+        synchronized (this) {
+            final OWLOntology current = ontology.peekOntology();
+            if ((current != null) && !ontology.isPartial())
+                return current;
+
+            /*
+             * A partial ontology is offloaded first, so it is replaced by the
+             * parsed one just like an offloaded ontology.
+             */
+            final Integer slot;
+            if (current == null) {
+                slot = this.offloadedSlots.remove(ontology);
+            } else {
+                slot = this.ontologySlots.remove(current);
+                if (slot != null) {
+                    this.wrappedOntologies.remove(current);
+                    this.snapshotManager.removeOntology(current);
+                    this.dispose(ontology.offload());
+                }
+            }
+            if (slot == null)
+                return null;
+            try {
+                toReturn = this.copy(parsed, ontology.getDocumentIRI());
+            } catch (OWLOntologyCreationException e) {
+                this.offloadedSlots.put(ontology, slot);
+                return null;
+            }
+
+            this.ontologySlots.put(toReturn, slot);
+            this.wrappedOntologies.put(toReturn, ontology);
+            ontology.rehydrate(toReturn);
+            this.fillTree(toReturn);
+            this.enforceBudget(ontology);
+        }
+
+        for (OWLImportsDeclaration declaration
+                : parsed.getImportsDeclarations())
+            for (WrappedOWLOntology o : this.ontologySnapshot)
+                if (o.isOffloaded() && (declaration.getIRI().equals(
+                        o.getOntologyID().getOntologyIRI())
+                        || declaration.getIRI().equals(o.getDocumentIRI())))
+                    this.requestRehydrate(o);
+        this.eventBus.post(null, null, new Object[] {ontology});
+        return toReturn;
     }
 
     /**
      * Retrieves a Set of {@link OWLEntity} proposals available from the
-     * managed ontologies.
+     * managed ontologies.  Only the ontologies loaded so far are searched
+     * while the serialized warm start index is in use, so this method never
+     * reads the whole index.
      *
      * @return the available templates
      */
@@ -231,28 +839,345 @@ public final class WrappedOWLOntologyManager
      * @return the available templates
      */
     public Set<WrappedOWLEntity> getAutocompleteTemplates(final String prefix) {
+        final ProposalIndexFile warm = this.warmIndex;
+        if (warm != null)
+            return new HashSet<WrappedOWLEntity>(
+                    warm.find(prefix, warm.count(prefix)));
         return this.proposalTrie.postfixes(prefix);
     }
 
+    /**
+     * Retrieves a Set of {@link OWLEntity} proposals of the given types
+     * available from the managed ontologies relative to the prefix given.
+     * Parts of the index without templates of the given types are skipped.
+     *
+     * @param prefix the prefix to search for
+     * @param types the types of the templates to retrieve
+     * @return the available templates
+     */
+    public Set<WrappedOWLEntity> getAutocompleteTemplates(final String prefix,
+            final EnumSet<WrappedOWLEntity.Types> types) {
+        final ProposalIndexFile warm = this.warmIndex;
+        if (warm != null)
+            return new HashSet<WrappedOWLEntity>(
+                    warm.find(prefix, warm.count(prefix), types));
+        return this.proposalTrie.postfixes(prefix, types);
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> {@link OWLEntity} proposals
+     * available from the managed ontologies relative to the prefix given.  The
+     * proposals are returned in lexicographic order and the search stops as
+     * soon as the limit is reached.
+     *
+     * @param prefix the prefix to search for
+     * @param limit the maximum number of templates to retrieve
+     * @return the available templates
+     */
+    public List<WrappedOWLEntity> getAutocompleteTemplates(final String prefix,
+            final int limit) {
+        final ProposalIndexFile warm = this.warmIndex;
+        if (warm != null)
+            return warm.find(prefix, limit);
+        final List<WrappedOWLEntity> toReturn =
+                new ArrayList<WrappedOWLEntity>(Math.min(limit,
+                        this.proposalTrie.count(prefix)));
+        if (limit < 1)
+            return toReturn;
+        this.proposalTrie.visit(prefix, new ITemplateProposalVisitor() {
+            public boolean visit(final WrappedOWLEntity entity) {
+                toReturn.add(entity);
+                return toReturn.size() < limit;
+            }
+        });
+        return toReturn;
+    }
+
+    /**
+     * Retrieves the <code>k</code> best {@link OWLEntity} proposals available
+     * from the managed ontologies relative to the prefix given.  Proposals are
+     * ranked by how often they have been used before.
+     *
+     * @param prefix the prefix to search for
+     * @param k the maximum number of templates to retrieve
+     * @return the best templates, most frequently used first
+     *
+     * @see WrappedOWLOntologyManager#recordTemplateUsage(WrappedOWLEntity)
+     */
+    public List<WrappedOWLEntity> getTopAutocompleteTemplates(
+            final String prefix, final int k) {
+        final ProposalIndexFile warm = this.warmIndex;
+        if (warm != null)
+            return warm.find(prefix, k);
+        return this.proposalTrie.topK(prefix, k);
+    }
+
+    /**
+     * Retrieves the <code>k</code> best {@link OWLEntity} proposals of the
+     * given types available from the managed ontologies relative to the
+     * prefix given, eg. only classes where a type is expected.
+     *
+     * @param prefix the prefix to search for
+     * @param k the maximum number of templates to retrieve
+     * @param types the types of the templates to retrieve
+     * @return the best templates, most frequently used first
+     *
+     * @see WrappedOWLOntologyManager#getTopAutocompleteTemplates(String, int)
+     */
+    public List<WrappedOWLEntity> getTopAutocompleteTemplates(
+            final String prefix, final int k,
+            final EnumSet<WrappedOWLEntity.Types> types) {
+        final ProposalIndexFile warm = this.warmIndex;
+        if (warm != null)
+            return warm.find(prefix, k, types);
+        return this.proposalTrie.topK(prefix, k, types);
+    }
+
+    /**
+     * Retrieves the {@link OWLEntity} proposals available from the managed
+     * ontologies whose IDs are within the given edit distance of the query,
+     * closest first.  The serialized warm start index cannot answer fuzzy
+     * queries, so only the ontologies loaded so far are searched while it is
+     * in use.
+     *
+     * @param query the (possibly misspelled) ID to search for
+     * @param maxDistance the maximum edit distance
+     * @return the matching templates, closest first
+     */
+    public List<WrappedOWLEntity> getFuzzyTemplates(final String query,
+            final int maxDistance) {
+        return this.proposalTrie.fuzzy(query, maxDistance, false,
+                Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> {@link OWLEntity} proposals
+     * available from the managed ontologies whose IDs start with a prefix
+     * within the given edit distance of the prefix given, closest first.  Only
+     * the ontologies loaded so far are searched while the serialized warm
+     * start index is in use.
+     *
+     * @param prefix the (possibly misspelled) prefix to search for
+     * @param maxDistance the maximum edit distance
+     * @param limit the maximum number of templates to retrieve
+     * @return the matching templates, closest first
+     */
+    public List<WrappedOWLEntity> getFuzzyAutocompleteTemplates(
+            final String prefix, final int maxDistance, final int limit) {
+        return this.proposalTrie.fuzzy(prefix, maxDistance, true, limit);
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> {@link OWLEntity} proposals
+     * available from the managed ontologies matching the CamelCase
+     * abbreviation given, eg. <code>OSC</code> or <code>StarClu</code> for
+     * <code>OpenStarCluster</code>.  Plain prefixes of the IDs are not
+     * matched, use
+     * {@link WrappedOWLOntologyManager#getAutocompleteTemplates(String)} for
+     * those.  Only the ontologies loaded so far are searched while the
+     * serialized warm start index is in use.
+     *
+     * @param abbreviation the abbreviation to search for
+     * @param limit the maximum number of templates to retrieve
+     * @return the matching templates
+     */
+    public Set<WrappedOWLEntity> getAbbreviationTemplates(
+            final String abbreviation, final int limit) {
+        return this.abbreviationIndex.find(abbreviation, limit);
+    }
+
+    /**
+     * Retrieves at most <code>limit</code> {@link OWLEntity} proposals
+     * available from the managed ontologies whose IDs contain the fragment
+     * given anywhere, ignoring case.  Only the ontologies loaded so far are
+     * searched while the serialized warm start index is in use.
+     *
+     * @param fragment the fragment to search for, eg. <code>Cluster</code>
+     * @param limit the maximum number of templates to retrieve
+     * @return the matching templates
+     */
+    public Set<WrappedOWLEntity> getSubstringTemplates(final String fragment,
+            final int limit) {
+        return this.substringIndex.find(fragment, limit);
+    }
+
+    /**
+     * Records that the given template has been used, raising its rank in
+     * {@link WrappedOWLOntologyManager#getTopAutocompleteTemplates(String,
+     * int)}.
+     *
+     * @param entity the entity that has been used
+     */
+    public void recordTemplateUsage(final WrappedOWLEntity entity) {
+        this.proposalTrie.incrementScore(entity);
+    }
+
+    /**
+     * Counts the {@link OWLEntity} proposals available from the managed
+     * ontologies without collecting them.
+     *
+     * @return the number of available templates
+     */
+    public int getAutocompleteTemplateCount() {
+        final ProposalIndexFile warm = this.warmIndex;
+        if (warm != null)
+            return warm.size();
+        return this.proposalTrie.size();
+    }
+
+    /**
+     * Counts the {@link OWLEntity} proposals available from the managed
+     * ontologies relative to the prefix given without collecting them.
+     *
+     * @param prefix the prefix to search for
+     * @return the number of available templates
+     */
+    public int getAutocompleteTemplateCount(final String prefix) {
+        final ProposalIndexFile warm = this.warmIndex;
+        if (warm != null)
+            return warm.count(prefix);
+        return this.proposalTrie.count(prefix);
+    }
+
+    /**
+     * Sets the serialized proposal index to answer prefix queries with until
+     * the ontologies have been loaded.  Proposals are then available right
+     * after startup, without parsing any ontology.  Scores are not part of the
+     * serialized index, so its proposals are ranked lexicographically.  Fuzzy,
+     * abbreviation and substring queries are not answered by the index and
+     * only search the ontologies loaded so far.
+     *
+     * @param index the serialized index or <code>null</code> to switch (back)
+     *  to the index of the loaded ontologies
+     */
+    public void setWarmIndex(final ProposalIndexFile index) {
+        this.warmIndex = index;
+    }
+
+    /**
+     * Are prefix queries currently answered by a serialized index?
+     *
+     * @return <code>true</code> if a warm start index is in use
+     */
+    public boolean hasWarmIndex() {
+        return this.warmIndex != null;
+    }
+
+    /**
+     * Serializes the index of the loaded ontologies for the next warm start.
+     * Nothing is written while a warm start index is still in use, because
+     * the ontologies have not been loaded completely yet.
+     *
+     * @param file the file to write the index to
+     * @return <code>true</code> if the index was written
+     * @throws IOException if a document or the file could not be accessed
+     *
+     * @see ProposalIndexFile
+     */
+    public boolean saveProposalIndex(final File file) throws IOException {
+        if (this.warmIndex != null)
+            return false;
+        final List<DocumentFingerprint> fingerprints =
+                new ArrayList<DocumentFingerprint>();
+        for (WrappedOWLOntology o : this.getWrappedOntologies())
+            if (o.getDocumentIRI() != null)
+                fingerprints.add(DocumentFingerprint.of(
+                        o.getDocumentIRI().toString(),
+                        this.loadCoordinator.getDownloadCache()));
+        ProposalIndexFile.write(file, fingerprints,
+                this.proposalTrie.postfixes());
+        return true;
+    }
+
     /**
      * Fill the proposal template {@link TemplateProposalTrie} with all
-     * relevant template strings.
+     * relevant template strings.  The entities are owned by the ontology's
+     * slot, and only entities not already provided by another ontology are
+     * added to the secondary indexes and attached to the entity table.
      *
      * @param ontology the ontology to fill the Trie with
      */
-    private void fillTree(final OWLOntology ontology) {
-        this.proposalTrie.addAll(
-                WrappedOWLEntity.getEntitiesFrom(ontology));
+    private synchronized void fillTree(final OWLOntology ontology) {
+        Integer slot = this.ontologySlots.get(ontology);
+        if (slot == null) {
+            slot = this.usedSlots.nextClearBit(0);
+            this.usedSlots.set(slot);
+            this.ontologySlots.put(ontology, slot);
+        }
+
+        final List<WrappedOWLEntity> added = this.proposalTrie.addAll(
+                WrappedOWLEntity.getEntitiesFrom(ontology, this.indexExecutor),
+                slot, this.indexExecutor);
+        this.abbreviationIndex.addAll(added);
+        this.substringIndex.addAll(added);
+        WrappedOWLEntity.getEntityTable().attach(added);
     }
 
     /**
-     * Removes all entities from the given ontology from the proposal Trie.
+     * Brings the proposal Trie up to date with the changed entities of an
+     * already indexed ontology.  Entities still in the ontology's signature
+     * are added, all others are detached from the ontology's slot.  Only the
+     * entities given are looked at, so the cost of an edit does not depend
+     * on the size of the ontology.
      *
-     * @param ontology entities belonging to this ontology will be removed
+     * @param ontology the changed ontology
+     * @param entities the entities of all added and removed axioms
      */
-    private void clearTree(final OWLOntology ontology) {
-        this.proposalTrie.removeAll(
-                WrappedOWLEntity.getEntitiesFrom(ontology));
+    private synchronized void updateTree(final OWLOntology ontology,
+            final Set<OWLEntity> entities) {
+        final Integer slot = this.ontologySlots.get(ontology);
+        if (slot == null)
+            return;
+
+        final List<WrappedOWLEntity> present =
+                new ArrayList<WrappedOWLEntity>();
+        final List<WrappedOWLEntity> gone = new ArrayList<WrappedOWLEntity>();
+        for (OWLEntity entity : entities) {
+            if (ontology.containsEntityInSignature(entity, false)) {
+                present.add(WrappedOWLEntity.getEntityFor(entity));
+            } else {
+                final WrappedOWLEntity e = WrappedOWLEntity.getEntityTable()
+                        .lookup(entity.toStringID());
+                if (e != null)
+                    gone.add(e);
+            }
+        }
+
+        /*
+         * Every batch publishes a single new root, and most edits only add
+         * or only remove entities.
+         */
+        final List<WrappedOWLEntity> added = present.isEmpty()
+                ? Collections.<WrappedOWLEntity>emptyList()
+                : this.proposalTrie.addAll(present, slot);
+        final List<WrappedOWLEntity> removed = gone.isEmpty()
+                ? Collections.<WrappedOWLEntity>emptyList()
+                : this.proposalTrie.detach(gone, slot);
+
+        this.abbreviationIndex.addAll(added);
+        this.substringIndex.addAll(added);
+        this.abbreviationIndex.removeAll(removed);
+        this.substringIndex.removeAll(removed);
+        WrappedOWLEntity.getEntityTable().attach(added);
+        WrappedOWLEntity.getEntityTable().release(removed);
+    }
+
+    /**
+     * Removes all entities owned by the given slot from the proposal Trie.
+     * Entities still provided by another loaded ontology stay, and the
+     * ontology itself is not walked again, so it may already have been
+     * removed from the wrapped manager or offloaded.
+     *
+     * @param slot the slot of the removed ontology or <code>null</code>
+     */
+    private synchronized void clearTree(final Integer slot) {
+        if (slot == null)
+            return;
+        final List<WrappedOWLEntity> removed = this.proposalTrie.detach(slot);
+        this.usedSlots.clear(slot);
+        this.abbreviationIndex.removeAll(removed);
+        this.substringIndex.removeAll(removed);
+        WrappedOWLEntity.getEntityTable().release(removed);
     }
 
 }
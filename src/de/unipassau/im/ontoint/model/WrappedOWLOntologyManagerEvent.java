@@ -5,7 +5,8 @@ import java.util.EventObject;
 /**
  * An event, that will be handed over to any
  * {@link IWrappedOWLOntologyManagerChangeListener} as soon as ontologies are
- * added or removed from the {@link WrappedOWLOntologyManager} source.
+ * added or removed from the {@link WrappedOWLOntologyManager} source, or
+ * have been loaded again after they were offloaded.
  *
  * @author Philipp Nolte
  */
@@ -21,6 +22,11 @@ public final class WrappedOWLOntologyManagerEvent extends EventObject {
      */
     private Object[] removed;
 
+    /**
+     * The array of ontologies loaded again.
+     */
+    private Object[] changed;
+
     /**
      * {@link EventObject}s have to be able to be serialized.
      */
@@ -35,6 +41,7 @@ public final class WrappedOWLOntologyManagerEvent extends EventObject {
         super(source);
         this.added = new Object[0];
         this.removed = new Object[0];
+        this.changed = new Object[0];
     }
 
     /**
@@ -60,6 +67,25 @@ public final class WrappedOWLOntologyManagerEvent extends EventObject {
         this.removed = removedObjects;
     }
 
+    /**
+     * Creates a new event with the added, removed and changed objects.
+     *
+     * @param source the source of this event
+     * @param addedObjects the added objects
+     * @param removedObjects the removed objects
+     * @param changedObjects the objects loaded again
+     */
+    public WrappedOWLOntologyManagerEvent(final Object source,
+            final Object[] addedObjects,
+            final Object[] removedObjects,
+            final Object[] changedObjects) {
+        this(source, addedObjects, removedObjects);
+
+        if (changedObjects != null) {
+            this.changed = changedObjects;
+        }
+    }
+
     /**
      * Gets the added objects.
      *
@@ -78,4 +104,13 @@ public final class WrappedOWLOntologyManagerEvent extends EventObject {
         return this.removed;
     }
 
+    /**
+     * Gets the objects loaded again, whose content has to be shown anew.
+     *
+     * @return the changed objects
+     */
+    public Object[] getChanged() {
+        return this.changed;
+    }
+
 }
@@ -0,0 +1,164 @@
+package de.unipassau.im.ontoint.model;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Collects the ontologies added to, removed from and loaded again by a
+ * {@link WrappedOWLOntologyManager} and delivers them to the manager's
+ * listeners as a single {@link WrappedOWLOntologyManagerEvent}.  Ontologies
+ * posted until the delivery runs are merged into the same event, so loading
+ * an ontology with many imports causes a single update of the views.  An
+ * ontology added and removed again before the delivery is not delivered at
+ * all.
+ * <p>
+ * Posting never waits for the delivery.  The delivery is handed to an
+ * {@link Executor}, which should run it on the display thread.
+ *
+ * @author Philipp Nolte
+ */
+final class WrappedOWLOntologyManagerEventBus implements Runnable {
+
+    /**
+     * Runs the deliveries on the posting thread, until an executor has been
+     * set.
+     */
+    private static final Executor DIRECT = new Executor() {
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The manager whose listeners are notified.
+     */
+    private final WrappedOWLOntologyManager source;
+
+    /**
+     * The executor running the deliveries.
+     */
+    private volatile Executor executor =
+            WrappedOWLOntologyManagerEventBus.DIRECT;
+
+    /**
+     * The added ontologies not delivered yet.
+     */
+    private Set<Object> added = new LinkedHashSet<Object>();
+
+    /**
+     * The removed ontologies not delivered yet.
+     */
+    private Set<Object> removed = new LinkedHashSet<Object>();
+
+    /**
+     * The ontologies loaded again not delivered yet.
+     */
+    private Set<Object> changed = new LinkedHashSet<Object>();
+
+    /**
+     * <code>true</code> if a delivery has been handed to the executor and did
+     * not start yet.
+     */
+    private boolean scheduled;
+
+    /**
+     * Creates a new event bus for the manager given.
+     *
+     * @param manager the manager whose listeners are notified
+     */
+    WrappedOWLOntologyManagerEventBus(final WrappedOWLOntologyManager manager) {
+        this.source = manager;
+    }
+
+    /**
+     * Sets the executor running the deliveries.
+     *
+     * @param deliveryExecutor the executor or <code>null</code> to deliver on
+     *  the posting thread
+     */
+    void setExecutor(final Executor deliveryExecutor) {
+        if (deliveryExecutor == null)
+            this.executor = WrappedOWLOntologyManagerEventBus.DIRECT;
+        else
+            this.executor = deliveryExecutor;
+    }
+
+    /**
+     * Runs the task given with the executor running the deliveries, so it
+     * runs after the listeners are done with the current event, eg. to
+     * dispose objects the views may still be using.
+     *
+     * @param task the task to run
+     */
+    void execute(final Runnable task) {
+        this.executor.execute(task);
+    }
+
+    /**
+     * Posts added and removed ontologies to be delivered with the next event.
+     *
+     * @param addedObjects the added ontologies or <code>null</code>
+     * @param removedObjects the removed ontologies or <code>null</code>
+     */
+    void post(final Object[] addedObjects, final Object[] removedObjects) {
+        this.post(addedObjects, removedObjects, null);
+    }
+
+    /**
+     * Posts added, removed and changed ontologies to be delivered with the
+     * next event.  Ontologies added or removed in the same event are not
+     * delivered as changed.
+     *
+     * @param addedObjects the added ontologies or <code>null</code>
+     * @param removedObjects the removed ontologies or <code>null</code>
+     * @param changedObjects the ontologies loaded again or <code>null</code>
+     */
+    void post(final Object[] addedObjects, final Object[] removedObjects,
+            final Object[] changedObjects) {
+        synchronized (this) {
+            if (addedObjects != null)
+                for (Object o : addedObjects)
+                    if (!this.removed.remove(o))
+                        this.added.add(o);
+            if (removedObjects != null)
+                for (Object o : removedObjects) {
+                    this.changed.remove(o);
+                    if (!this.added.remove(o))
+                        this.removed.add(o);
+                }
+            if (changedObjects != null)
+                for (Object o : changedObjects)
+                    if (!this.added.contains(o) && !this.removed.contains(o))
+                        this.changed.add(o);
+            if (this.scheduled)
+                return;
+            this.scheduled = true;
+        }
+        this.executor.execute(this);
+    }
+
+    /**
+     * Delivers all ontologies posted so far as a single event.
+     */
+    public void run() {
+        final Object[] addedObjects;
+        final Object[] removedObjects;
+        final Object[] changedObjects;
+        synchronized (this) {
+            this.scheduled = false;
+            if (this.added.isEmpty() && this.removed.isEmpty()
+                    && this.changed.isEmpty())
+                return;
+            addedObjects = this.added.toArray();
+            removedObjects = this.removed.toArray();
+            changedObjects = this.changed.toArray();
+            this.added = new LinkedHashSet<Object>();
+            this.removed = new LinkedHashSet<Object>();
+            this.changed = new LinkedHashSet<Object>();
+        }
+        this.source.notifyListeners(new WrappedOWLOntologyManagerEvent(
+                this.source, addedObjects, removedObjects, changedObjects));
+    }
+
+}
@@ -1,6 +1,8 @@
 package de.unipassau.im.ontoint.proposals;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -16,6 +18,7 @@ import org.eclipse.jface.text.contentassist.IContextInformation;
 
 import de.unipassau.im.ontoint.OntointActivator;
 import de.unipassau.im.ontoint.model.WrappedOWLEntity;
+import de.unipassau.im.ontoint.model.WrappedOWLOntologyManager;
 
 /**
  * Proposals for the eclipse ContentAssists System from the ontology integration
@@ -36,6 +39,24 @@ public final class CompletionProposalComputer implements
     public static final int DEFAULT_FEATURES_INFRONT = 3;
     public static final int DEFAULT_FEATURES_BEHIND = 2;
 
+    /**
+     * The maximum number of proposals to retrieve from the model.
+     */
+    public static final int DEFAULT_MAX_PROPOSALS = 500;
+
+    /**
+     * The maximum edit distance of "did you mean" proposals offered if there
+     * is no proposal for the prefix typed.
+     */
+    public static final int DEFAULT_MAX_EDIT_DISTANCE = 1;
+
+    /**
+     * The minimum length of the prefix typed before "did you mean" proposals
+     * are offered.  Shorter prefixes are within a single edit of too many
+     * IDs.
+     */
+    public static final int DEFAULT_MIN_FUZZY_PREFIX = 3;
+
     /**
      * Extracts a collection of features from the given context.
      *
@@ -115,9 +136,29 @@ public final class CompletionProposalComputer implements
         } catch (BadLocationException e1) {
             // ignore
         }
-        Set<WrappedOWLEntity> proposals =
-                OntointActivator.getDefault().getManager()
-                .getAutocompleteTemplates(toReplace.toLowerCase());
+        final WrappedOWLOntologyManager manager =
+                OntointActivator.getDefault().getManager();
+        List<WrappedOWLEntity> proposals =
+                manager.getTopAutocompleteTemplates(toReplace,
+                        CompletionProposalComputer.DEFAULT_MAX_PROPOSALS);
+
+        // Add CamelCase abbreviation matches, eg. OSC for OpenStarCluster
+        final int room = CompletionProposalComputer.DEFAULT_MAX_PROPOSALS
+                - proposals.size();
+        if ((toReplace.length() > 0) && (room > 0)) {
+            final Set<WrappedOWLEntity> merged =
+                    new LinkedHashSet<WrappedOWLEntity>(proposals);
+            merged.addAll(manager.getAbbreviationTemplates(toReplace, room));
+            proposals = new ArrayList<WrappedOWLEntity>(merged);
+        }
+
+        // Fall back to similar spellings if the prefix is unknown
+        if (proposals.isEmpty() && (toReplace.length()
+                >= CompletionProposalComputer.DEFAULT_MIN_FUZZY_PREFIX)) {
+            proposals = manager.getFuzzyAutocompleteTemplates(toReplace,
+                    CompletionProposalComputer.DEFAULT_MAX_EDIT_DISTANCE,
+                    CompletionProposalComputer.DEFAULT_MAX_PROPOSALS);
+        }
 
         // Get the classifier from the plugin
         final Classifier<ContextFeature, String> classifier =
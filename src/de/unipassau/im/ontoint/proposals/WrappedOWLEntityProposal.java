@@ -26,6 +26,11 @@ public final class WrappedOWLEntityProposal implements ICompletionProposal,
         IJavaCompletionProposal,
         ICompletionProposalExtension6 {
 
+    /**
+     * The proposed entity.
+     */
+    private final WrappedOWLEntity proposed;
+
     /**
      * The classifier to use for relevance calculation.
      */
@@ -41,21 +46,6 @@ public final class WrappedOWLEntityProposal implements ICompletionProposal,
      */
     private int replacementOffset;
 
-    /**
-     * The String to display.
-     */
-    private String displayString;
-
-    /**
-     * The String to actually insert.
-     */
-    private String replaceString;
-
-    /**
-     * The type of this proposal.
-     */
-    private WrappedOWLEntity.Types type;
-
     /**
      * The set of features.
      */
@@ -78,25 +68,32 @@ public final class WrappedOWLEntityProposal implements ICompletionProposal,
         Assert.isTrue(caretPosition >= 0);
         Assert.isTrue(contextStart >= 0);
 
-        this.displayString = entity.getShortID();
-        this.replaceString = entity.getID();
-        this.type = entity.getType();
+        this.proposed = entity;
         this.classifier = cls;
         this.featureset = features;
         this.currentOffset = caretPosition;
         this.replacementOffset = contextStart;
     }
 
+    /**
+     * Retrieves the String to actually insert.
+     *
+     * @return the entity's ID
+     */
+    private String getReplaceString() {
+        return this.proposed.getID();
+    }
+
     /**
      * {@inheritDoc}
      */
     public StyledString getStyledDisplayString() {
         final StyledString toReturn =
-                new StyledString(this.displayString);
+                new StyledString(this.proposed.getShortID());
         toReturn.append(" [".concat(
                     Integer.toString(this.getRelevance())).concat("] "),
                 StyledString.COUNTER_STYLER);
-        toReturn.append(" - ".concat(this.replaceString),
+        toReturn.append(" - ".concat(this.proposed.getID()),
                 StyledString.QUALIFIER_STYLER);
         return toReturn;
     }
@@ -109,10 +106,12 @@ public final class WrappedOWLEntityProposal implements ICompletionProposal,
             document.replace(
                     this.replacementOffset,
                     this.currentOffset - this.replacementOffset,
-                    this.replaceString);
+                    this.getReplaceString());
 
             // Learn the user selection
-            this.classifier.learn(this.replaceString, this.featureset);
+            this.classifier.learn(this.getReplaceString(), this.featureset);
+            OntointActivator.getDefault().getManager()
+                    .recordTemplateUsage(this.proposed);
         } catch (BadLocationException e) {
             // ignore
         }
@@ -123,14 +122,14 @@ public final class WrappedOWLEntityProposal implements ICompletionProposal,
      */
     public Point getSelection(final IDocument document) {
         return new Point(
-                this.currentOffset + this.replaceString.length(), 0);
+                this.currentOffset + this.getReplaceString().length(), 0);
     }
 
     /**
      * {@inheritDoc}
      */
     public String getAdditionalProposalInfo() {
-        return this.replaceString;
+        return this.getReplaceString();
     }
 
     /**
@@ -144,9 +143,8 @@ public final class WrappedOWLEntityProposal implements ICompletionProposal,
      * {@inheritDoc}
      */
     public Image getImage() {
-        final String icon =
-                "icons/" + this.type.toString().toLowerCase()
-                + ".gif";
+        final String icon = "icons/"
+                + this.proposed.getType().toString().toLowerCase() + ".gif";
         return OntointActivator.getDefault().getImageCache().getImage(
                 OntointActivator.getImageDescriptor(icon));
     }
@@ -165,7 +163,7 @@ public final class WrappedOWLEntityProposal implements ICompletionProposal,
         if ((this.classifier == null) || (this.featureset == null))
             return 0;
         return Math.round(this.classifier.classifyDetailed(this.featureset)
-                .getProbabilityFor(this.replaceString) * 100.0f);
+                .getProbabilityFor(this.getReplaceString()) * 100.0f);
     }
 
 }
@@ -8,6 +8,7 @@ import org.eclipse.jface.viewers.ITreeContentProvider;
 import org.eclipse.jface.viewers.TreeViewer;
 import org.eclipse.jface.viewers.Viewer;
 import org.semanticweb.owlapi.model.OWLClass;
+import org.semanticweb.owlapi.reasoner.OWLReasoner;
 import org.semanticweb.owlapi.vocab.OWLRDFVocabulary;
 
 import de.unipassau.im.ontoint.OntointActivator;
@@ -47,12 +48,18 @@ public class ClassHierarchyTreeContentProvider
         }
         OWLClass node = (OWLClass) parentElement;
 
-        Set<OWLClass> children = this.input.getReasoner().getSubClasses(
+        // Offloaded ontologies are loaded again by retrieving the reasoner,
+        // the view refreshes the tree once they are available.
+        OWLReasoner reasoner = this.input.getReasoner();
+        if (reasoner == null) {
+            return new Object[0];
+        }
+        Set<OWLClass> children = reasoner.getSubClasses(
                 node, true).getFlattened();
         Set<OWLClass> toReturn = new HashSet<OWLClass>();
         for (Iterator<OWLClass> it = children.iterator(); it.hasNext();) {
             OWLClass child = it.next();
-            if (this.input.getReasoner().isSatisfiable(child)) {
+            if (reasoner.isSatisfiable(child)) {
                 toReturn.add(child);
             }
         }
@@ -163,6 +163,15 @@ public final class ClassHierarchyView extends ViewPart
                 }
             }
         }
+        final Object[] changed = event.getChanged();
+        for (int i = 0; i < changed.length; i++) {
+            if (changed[i].equals(this.viewer.getInput())) {
+
+                // The shown ontology has been loaded again after it was
+                // offloaded, while the tree showed it empty.
+                this.viewer.refresh();
+            }
+        }
     }
 
     /**
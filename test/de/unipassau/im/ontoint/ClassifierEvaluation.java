@@ -1,7 +1,5 @@
 package de.unipassau.im.ontoint;
 
-import hudson.util.EditDistance;
-
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
@@ -17,7 +15,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -211,7 +208,7 @@ public class ClassifierEvaluation {
                     new File(fileName));
         }
         System.out.println("Ontology elements: "
-                    + this.manager.getAutocompleteTemplates().size());
+                    + this.manager.getAutocompleteTemplateCount());
     }
 
     private void loadStopwords() throws Exception {
@@ -316,21 +313,18 @@ public class ClassifierEvaluation {
         if (toTest.length() < 1)
             return null;
 
-        Set<WrappedOWLEntity> proposals =
-                this.manager.getAutocompleteTemplates("" + toTest.charAt(0));
+        // The closest match comes first, only IDs starting with the same
+        // char as the token are considered
+        List<WrappedOWLEntity> proposals = this.manager.getFuzzyTemplates(
+                toTest, ClassifierEvaluation.MAX_EDIT_DISTANCE);
 
-        int bestScore = Integer.MAX_VALUE;
         String bestMatch = null;
         for (WrappedOWLEntity proposal : proposals) {
             String id = proposal.getShortID().toLowerCase();
-//            if (id.equals("star"))
-//                continue;
-            int score = EditDistance.editDistance(id, toTest);
-            if ((score < bestScore)
-                    && (score <= ClassifierEvaluation.MAX_EDIT_DISTANCE)) {
-//                System.out.println(score + "\t" + id + "\t" + toTest);
+            if ((id.length() > 0) && (id.charAt(0)
+                    == Character.toLowerCase(toTest.charAt(0)))) {
                 bestMatch = id;
-                bestScore = score;
+                break;
             }
         }
 
@@ -0,0 +1,115 @@
+package de.unipassau.im.ontoint.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Tests that the {@link EntityTable} keeps attached entities, and detached
+ * ones for as long as they are referenced.
+ */
+public class EntityTableTest {
+
+    /**
+     * Creates a new class entity with the ID given.
+     *
+     * @param id the entity ID
+     * @return the entity, not interned yet
+     */
+    private static WrappedOWLEntity entity(final String id) {
+        return new WrappedOWLEntity(id, WrappedOWLEntity.Types.OWLClass);
+    }
+
+    /**
+     * Tests that interning the ID of a released entity that is still
+     * referenced brings back the very same singleton, which stays detached
+     * until it is attached again.
+     */
+    @Test
+    public void keepsReferencedEntitiesAfterRelease() {
+        final EntityTable table = new EntityTable();
+        final WrappedOWLEntity a = table.intern(entity("http://x#a"));
+        final WrappedOWLEntity b = table.intern(entity("http://x#b"));
+        assertNull(table.lookup("http://x#a"));
+        table.attach(Arrays.asList(a, b));
+        assertSame(a, table.lookup("http://x#a"));
+        assertEquals(2, table.size());
+
+        table.release(Collections.singleton(a));
+        assertNull(table.lookup("http://x#a"));
+        assertEquals(1, table.size());
+
+        assertSame(a, table.intern("http://x#a",
+                WrappedOWLEntity.Types.OWLClass));
+        assertNull(table.lookup("http://x#a"));
+        assertEquals(1, table.size());
+
+        table.attach(Collections.singleton(a));
+        assertSame(a, table.lookup("http://x#a"));
+        assertSame(b, table.lookup("http://x#b"));
+        assertEquals(2, table.size());
+    }
+
+    /**
+     * Tests that interning the ID of a released entity again does not keep
+     * it from being garbage collected.
+     */
+    @Test
+    public void letsRevivedEntitiesBeCollected() {
+        final EntityTable table = new EntityTable();
+        final WrappedOWLEntity a = table.intern(entity("http://x#a"));
+        table.attach(Collections.singleton(a));
+        table.release(Collections.singleton(a));
+        assertSame(a, table.intern(entity("http://x#a")));
+
+        table.collect("http://x#a");
+        final WrappedOWLEntity b = table.intern(entity("http://x#a"));
+        assertNotSame(a, b);
+        assertSame(b, table.intern("http://x#a",
+                WrappedOWLEntity.Types.OWLClass));
+    }
+
+    /**
+     * Tests that attached entities are kept until they are released.
+     */
+    @Test
+    public void keepsAttachedEntities() {
+        final EntityTable table = new EntityTable();
+        final WrappedOWLEntity a = table.intern(entity("http://x#a"));
+        table.attach(Collections.singleton(a));
+
+        table.collect("http://x#a");
+        assertSame(a, table.intern(entity("http://x#a")));
+        assertSame(a, table.lookup("http://x#a"));
+
+        table.release(Collections.singleton(a));
+        table.collect("http://x#a");
+        assertNotSame(a, table.intern(entity("http://x#a")));
+        assertEquals(0, table.size());
+    }
+
+    /**
+     * Tests that clearing the table forgets all entities, released or not.
+     */
+    @Test
+    public void forgetsEntitiesOnClear() {
+        final EntityTable table = new EntityTable();
+        final WrappedOWLEntity a = table.intern(entity("http://x#a"));
+        final WrappedOWLEntity b = table.intern(entity("http://x#b"));
+        table.attach(Collections.singleton(a));
+
+        table.clear();
+        assertEquals(0, table.size());
+        assertNull(table.lookup("http://x#a"));
+        assertNotSame(a, table.intern(entity("http://x#a")));
+        assertNotSame(b, table.intern(entity("http://x#b")));
+        assertEquals(0, table.size());
+    }
+
+}
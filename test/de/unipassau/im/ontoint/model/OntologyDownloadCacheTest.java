@@ -0,0 +1,305 @@
+package de.unipassau.im.ontoint.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests the {@link OntologyDownloadCache} against a local HTTP server standing
+ * in for a remote ontology host.
+ */
+public class OntologyDownloadCacheTest {
+
+    /**
+     * The local HTTP server standing in for the ontology host.
+     */
+    private HttpServer server;
+
+    /**
+     * The directory documents are cached in.
+     */
+    private File directory;
+
+    /**
+     * The location of the document served.
+     */
+    private URI location;
+
+    /**
+     * The document served.
+     */
+    private volatile String document = "<rdf:RDF>first</rdf:RDF>";
+
+    /**
+     * The entity tag of the document served.
+     */
+    private volatile String etag = "\"1\"";
+
+    /**
+     * Holds back every response until it is counted down, if set.
+     */
+    private volatile CountDownLatch gate;
+
+    /**
+     * The number of times the document was sent.
+     */
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    /**
+     * The number of conditional requests received.
+     */
+    private final AtomicInteger revalidations = new AtomicInteger();
+
+    /**
+     * The <code>Accept</code> header of the last request received.
+     */
+    private volatile String accept;
+
+    /**
+     * Starts the server on a free port, serving the document and a redirect
+     * to it.
+     *
+     * @throws Exception if the server could not be started
+     */
+    @Before
+    public void setUp() throws Exception {
+        this.directory = File.createTempFile("downloads", "");
+        this.directory.delete();
+
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+                0);
+        this.server.createContext("/moved", new HttpHandler() {
+            public void handle(final HttpExchange exchange)
+                throws IOException {
+                exchange.getResponseHeaders().set("Location", "/onto.owl");
+                exchange.sendResponseHeaders(302, -1);
+                exchange.close();
+            }
+        });
+        this.server.createContext("/", new HttpHandler() {
+            public void handle(final HttpExchange exchange)
+                throws IOException {
+                OntologyDownloadCacheTest.this.serve(exchange);
+            }
+        });
+        this.server.start();
+        this.location = new URI("http://127.0.0.1:"
+                + this.server.getAddress().getPort() + "/onto.owl");
+    }
+
+    /**
+     * Stops the server and deletes the cached documents.
+     */
+    @After
+    public void tearDown() {
+        if (this.gate != null)
+            this.gate.countDown();
+        this.server.stop(0);
+        final File[] files = this.directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        this.directory.delete();
+    }
+
+    /**
+     * Answers a request for the document, with <code>304</code> if it is
+     * conditional on the current entity tag.
+     *
+     * @param exchange the request to answer
+     * @throws IOException if the response could not be sent
+     */
+    private void serve(final HttpExchange exchange) throws IOException {
+        try {
+            if (this.gate != null)
+                this.gate.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        this.accept = exchange.getRequestHeaders().getFirst("Accept");
+        final String ifNoneMatch =
+                exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            this.revalidations.incrementAndGet();
+            if (ifNoneMatch.equals(this.etag)) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+        }
+
+        this.downloads.incrementAndGet();
+        final byte[] body = this.document.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("ETag", this.etag);
+        exchange.sendResponseHeaders(200, body.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    /**
+     * Reads a cached document.
+     *
+     * @param file the cached document
+     * @return the document's content
+     * @throws IOException if the document could not be read
+     */
+    private static String read(final File file) throws IOException {
+        final ByteArrayOutputStream toReturn = new ByteArrayOutputStream();
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[1024];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                toReturn.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        return toReturn.toString("UTF-8");
+    }
+
+    /**
+     * Tests that a document fetched twice in one session is downloaded only
+     * once and not revalidated.
+     */
+    @Test
+    public void downloadsOnlyOncePerSession() throws Exception {
+        final OntologyDownloadCache cache =
+                new OntologyDownloadCache(this.directory);
+
+        final File first = cache.fetch(this.location);
+        final File second = cache.fetch(this.location);
+
+        assertEquals(this.document, read(first));
+        assertEquals(first, second);
+        assertEquals(1, this.downloads.get());
+        assertEquals(0, this.revalidations.get());
+    }
+
+    /**
+     * Tests that a document cached in an earlier session is revalidated, but
+     * not downloaded again while it is unchanged.
+     */
+    @Test
+    public void revalidatesWithoutDownloadingUnchangedDocuments()
+        throws Exception {
+        new OntologyDownloadCache(this.directory).fetch(this.location);
+
+        final OntologyDownloadCache nextSession =
+                new OntologyDownloadCache(this.directory);
+        final File cached = nextSession.fetch(this.location);
+        final Future<Boolean> revalidation =
+                nextSession.revalidate(this.location);
+
+        assertFalse(revalidation.get(10, TimeUnit.SECONDS));
+        assertEquals(this.document, read(cached));
+        assertEquals(1, this.downloads.get());
+    }
+
+    /**
+     * Tests that a document changed since an earlier session is downloaded
+     * again and replaces the cached copy.
+     */
+    @Test
+    public void replacesChangedDocuments() throws Exception {
+        final File first =
+                new OntologyDownloadCache(this.directory).fetch(this.location);
+
+        this.document = "<rdf:RDF>second</rdf:RDF>";
+        this.etag = "\"2\"";
+        final OntologyDownloadCache nextSession =
+                new OntologyDownloadCache(this.directory);
+
+        assertTrue(nextSession.revalidate(this.location)
+                .get(10, TimeUnit.SECONDS));
+        final File second = nextSession.fetch(this.location);
+        assertEquals("<rdf:RDF>second</rdf:RDF>", read(second));
+        assertFalse(first.exists());
+        assertEquals(2, this.downloads.get());
+    }
+
+    /**
+     * Tests that a cached document is served while the host is slow to
+     * answer.
+     */
+    @Test
+    public void servesCachedDocumentsWithoutWaitingForTheHost()
+        throws Exception {
+        new OntologyDownloadCache(this.directory).fetch(this.location);
+
+        this.gate = new CountDownLatch(1);
+        final long start = System.nanoTime();
+        final File cached =
+                new OntologyDownloadCache(this.directory).fetch(this.location);
+        final long millis = TimeUnit.NANOSECONDS.toMillis(
+                System.nanoTime() - start);
+
+        assertEquals(this.document, read(cached));
+        assertTrue(millis < 5000);
+        this.gate.countDown();
+    }
+
+    /**
+     * Tests that documents are requested as RDF/XML, like the OWL API
+     * requests them.
+     */
+    @Test
+    public void requestsRDFXML() throws Exception {
+        new OntologyDownloadCache(this.directory).fetch(this.location);
+
+        assertTrue(this.accept.startsWith("application/rdf+xml"));
+    }
+
+    /**
+     * Tests that redirects are followed and the document is cached under
+     * the location requested.
+     */
+    @Test
+    public void followsRedirects() throws Exception {
+        final URI moved = this.location.resolve("/moved");
+        final OntologyDownloadCache cache =
+                new OntologyDownloadCache(this.directory);
+
+        assertEquals(this.document, read(cache.fetch(moved)));
+        assertEquals(this.document, read(cache.fetch(moved)));
+        assertEquals(1, this.downloads.get());
+    }
+
+    /**
+     * Tests that evicted documents are downloaded again.
+     */
+    @Test
+    public void downloadsEvictedDocumentsAgain() throws Exception {
+        final OntologyDownloadCache cache =
+                new OntologyDownloadCache(this.directory);
+        final File first = cache.fetch(this.location);
+
+        cache.evict(this.location);
+        assertFalse(first.exists());
+        assertEquals(this.document, read(cache.fetch(this.location)));
+        assertEquals(2, this.downloads.get());
+    }
+
+}